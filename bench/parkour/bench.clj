@@ -0,0 +1,312 @@
+(ns parkour.bench
+  "End-to-end local benchmarks of whole job graphs over synthetic data.  Run as
+`lein bench [benchmark ...]`, configuring via `-D` generic options."
+  (:require [clojure.string :as str]
+            [clojure.core.reducers :as r]
+            [clojure.pprint :as pp]
+            [parkour (conf :as conf) (fs :as fs) (mapreduce :as mr)
+             ,       (graph :as pg) (tool :as tool)]
+            [parkour.io (text :as text) (seqf :as seqf) (avro :as mra)
+             ,          (dux :as dux) (dsink :as dsink)]
+            [parkour.util :as util]
+            [parkour.example (word-count :as wc) (matrixify :as mx)])
+  (:import [java.lang.management GarbageCollectorMXBean ManagementFactory]
+           [java.util Arrays Locale Random]
+           [org.apache.hadoop.io Text LongWritable]))
+
+(def ^:private defaults
+  "Default values for the benchmark configuration parameters."
+  {"parkour.bench.records" 100000,
+   "parkour.bench.keys" 10000,
+   "parkour.bench.skew" 1.0,
+   "parkour.bench.seed" 1,
+   "parkour.bench.dir" "tmp/bench",
+   "parkour.bench.baseline" "tmp/bench-baseline.edn",
+   "parkour.bench.update" false,
+   "parkour.bench.tolerance" 0.25,
+   })
+
+(def ^:private ^:const words-per-line
+  "Number of words in each generated text line."
+  8)
+
+(def ^:private ^:const noise-millis
+  "Minimum increase in a time metric which may count as a regression."
+  100)
+
+(def ^:private compared-counters
+  "Job counters compared against the baseline, as insensitive to timing."
+  #{"MAP_OUTPUT_RECORDS" "MAP_OUTPUT_BYTES" "MAP_OUTPUT_MATERIALIZED_BYTES"
+    "COMBINE_OUTPUT_RECORDS" "REDUCE_INPUT_RECORDS" "SPILLED_RECORDS"})
+
+(defn ^:private param
+  "Value of benchmark parameter `key` in `conf`."
+  [conf key]
+  (let [default (get defaults key)]
+    (cond
+      (float? default) (conf/get-float conf key default)
+      (integer? default) (conf/get-long conf key default)
+      (true? default) (conf/get-boolean conf key default)
+      (false? default) (conf/get-boolean conf key default)
+      :else (conf/get conf key default))))
+
+(defn ^:private key-sampler
+  "Function of a `Random` returning key indices in [0, `nkeys`) as per a Zipf
+distribution with exponent `skew`, or uniformly for a `skew` of zero."
+  [nkeys skew]
+  (let [^doubles cdf (->> (range nkeys)
+                          (map #(Math/pow (inc %) (- (double skew))))
+                          (reductions +)
+                          (double-array))
+        total (aget cdf (dec (alength cdf)))]
+    (fn [^Random rng]
+      (let [i (Arrays/binarySearch cdf (* total (.nextDouble rng)))]
+        (if (neg? i) (- (inc i)) i)))))
+
+(defn generate!
+  "Generate the synthetic benchmark datasets for `conf`, returning a map of
+dataset name to path.  Datasets hold `parkour.bench.records` records each,
+drawing keys from `parkour.bench.keys` distinct keys as per a Zipf distribution
+with exponent `parkour.bench.skew`:
+  `:text` -- Text lines of whitespace-separated keys;
+  `:edges` -- Text lines of graph edges between keys, with random weights;
+  `:seqf` -- Sequence file of key and random integer pairs;
+  `:avro` -- Avro key-value file of key and random integer pairs."
+  [conf]
+  (let [n (param conf "parkour.bench.records")
+        sample (key-sampler (param conf "parkour.bench.keys")
+                            (param conf "parkour.bench.skew"))
+        rng (Random. (param conf "parkour.bench.seed"))
+        key #(str "k" (sample rng))
+        pair #(vector (key) (long (.nextInt rng 1000)))
+        dir (fs/path (param conf "parkour.bench.dir"))
+        paths (into {} (map (juxt identity #(fs/path dir (name %))))
+                    [:text :edges :seqf :avro])]
+    (doseq [p (vals paths)] (fs/path-delete p))
+    (dsink/with-dseq (text/dsink (:text paths))
+      (->> #(str/join " " (repeatedly words-per-line key))
+           (repeatedly n)
+           (mr/sink-as :keys)))
+    (dsink/with-dseq (text/dsink (:edges paths))
+      (->> #(String/format Locale/ROOT "%s %s %.3f"
+                           (object-array [(key) (key) (.nextDouble rng)]))
+           (repeatedly n)
+           (mr/sink-as :keys)))
+    (dsink/with-dseq (seqf/dsink [Text LongWritable] (:seqf paths))
+      (repeatedly n pair))
+    (dsink/with-dseq (mra/dsink [:string :long] (:avro paths))
+      (repeatedly n pair))
+    paths))
+
+(defn tag-m
+  "Tag the values of the key-value tuples of `input` with `tag`."
+  [tag input]
+  (r/map (fn [[k v]] [k (str tag v)]) (mr/keyvals input)))
+
+(defn join-r
+  "Count the joined pairs of values tagged `0` and `1` for each key."
+  {::mr/source-as :keyvalgroups}
+  [input]
+  (r/map (fn [[k vals]]
+           (let [[l r] (r/reduce (fn [[l r] v]
+                                   (if (= \0 (first (str v)))
+                                     [(inc l) r]
+                                     [l (inc r)]))
+                                 [0 0] vals)]
+             [k (* l r)]))
+         input))
+
+(defn ^:private join
+  "Reduce-side join of the sequence file and Avro datasets."
+  [conf {:keys [seqf avro]}]
+  [(-> [(-> (pg/input (seqf/dseq seqf)) (pg/map #'tag-m 0))
+        (-> (pg/input (mra/dseq [:default :default] avro)) (pg/map #'tag-m 1))]
+       (pg/partition [Text Text])
+       (pg/reduce #'join-r)
+       (pg/output (seqf/dsink [Text LongWritable]))
+       (pg/fexecute conf `join))])
+
+(defn words-m
+  "Key-count tuples for each word of the text lines of `input`."
+  [input]
+  (->> (mr/vals input)
+       (r/mapcat #(str/split % #"\s+"))
+       (r/map #(-> [% 1]))))
+
+(defn keys-m
+  "Key-count tuples for each key of the key-value tuples of `input`."
+  [input] (r/map #(-> [% 1]) (mr/keys input)))
+
+(defn split-r
+  "Sum the counts for each key, routing keys with even and odd totals to the
+`:even` and `:odd` outputs respectively."
+  {::mr/source-as :keyvalgroups, ::mr/sink-as dux/named-keyvals}
+  [input]
+  (r/map (fn [[k counts]]
+           (let [n (r/reduce + 0 counts)]
+             [(if (even? n) :even :odd) k n]))
+         input))
+
+(defn ^:private multiplex
+  "Multiplexed-input, multiplexed-output key count over all datasets."
+  [conf {:keys [text seqf avro]}]
+  (-> [(-> (pg/input (text/dseq text)) (pg/map #'words-m))
+       (-> (pg/input (seqf/dseq seqf)) (pg/map #'keys-m))
+       (-> (pg/input (mra/dseq [:default :default] avro)) (pg/map #'keys-m))]
+      (pg/partition [Text LongWritable])
+      (pg/reduce #'split-r)
+      (pg/output :even (seqf/dsink [Text LongWritable])
+                 :odd (seqf/dsink [Text LongWritable]))
+      (pg/execute conf `multiplex)))
+
+(def ^:private benchmarks
+  "Map of benchmark name to function of configuration and dataset paths running
+the benchmark's job graph, returning its result dseqs."
+  {:word-count (fn [conf {:keys [text]}]
+                 [(wc/word-count conf (text/dseq text))]),
+   :matrixify (fn [conf {:keys [edges]}]
+                [(mx/matrixify conf (text/dseq edges))]),
+   :join join,
+   :multiplex multiplex,
+   })
+
+(defn ^:private gc-stats
+  "Vector of total JVM garbage collection count and milliseconds."
+  []
+  (reduce (fn [[n ms] ^GarbageCollectorMXBean gc]
+            [(+ n (max 0 (.getCollectionCount gc)))
+             (+ ms (max 0 (.getCollectionTime gc)))])
+          [0 0] (ManagementFactory/getGarbageCollectorMXBeans)))
+
+(defn ^:private thread-allocations
+  "Map of thread ID to bytes allocated by each live thread, or `nil` if the JVM
+does not support measuring thread allocation."
+  []
+  (let [mx (ManagementFactory/getThreadMXBean)]
+    (when (instance? com.sun.management.ThreadMXBean mx)
+      (let [mx ^com.sun.management.ThreadMXBean mx
+            ids (.getAllThreadIds mx)]
+        (zipmap ids (.getThreadAllocatedBytes mx ids))))))
+
+(defn ^:private allocation-sampler
+  "Begin sampling the bytes allocated by all threads.  Returns a function which
+stops sampling and returns the approximate total bytes allocated since, or
+`nil` if unsupported.  Allocations by threads which exit between samples are
+counted only as of their last sample."
+  []
+  (if-let [base (thread-allocations)]
+    (let [peak (atom base), running (atom true)
+          sample! #(swap! peak (partial merge-with max) (thread-allocations))
+          thread (doto (Thread. ^Runnable
+                                (fn []
+                                  (while @running
+                                    (sample!)
+                                    (Thread/sleep 50))))
+                   (.setDaemon true)
+                   (.start))]
+      (fn []
+        (reset! running false)
+        (.join thread)
+        (sample!)
+        (->> @peak
+             (map (fn [[id bytes]] (- bytes (max 0 (get base id 0)))))
+             (filter pos?)
+             (reduce + 0))))
+    (constantly nil)))
+
+(defn ^:private recording-timelines
+  "Call `f` with no arguments, returning a tuple of its result and a vector of
+the timeline reports of every job graph executed during the call."
+  [f]
+  (let [reports (atom []), execute pg/execute]
+    (with-redefs [pg/execute (fn [graph conf jname]
+                               (let [results (execute graph conf jname)]
+                                 (when-let [report (some pg/timeline results)]
+                                   (swap! reports conj report))
+                                 results))]
+      [(f) @reports])))
+
+(defn ^:private job-counters
+  "Map of job name to flattened counters for the jobs of the timeline reports
+`reports`."
+  [reports]
+  (->> (mapcat :nodes reports)
+       (map (fn [{:keys [jname counters]}]
+              [jname (->> counters vals (apply merge {}))]))
+       (into (sorted-map))))
+
+(defn run-benchmark
+  "Run the benchmark named `bench` with `conf` over the datasets `paths`,
+returning a map of its wall-clock `:millis`, JVM `:gc-count` and `:gc-millis`,
+approximate `:alloc-bytes`, and the counters of every job run as `:jobs`."
+  [conf paths bench]
+  (let [f (or (get benchmarks bench)
+              (throw (ex-info (str "Unknown benchmark: " (name bench))
+                              {:bench bench})))
+        _ (System/gc)
+        [gc0 gcms0] (gc-stats), stop (allocation-sampler)
+        t0 (System/currentTimeMillis)
+        [_ reports] (recording-timelines #(f (conf/clone conf) paths))
+        t1 (System/currentTimeMillis)
+        alloc (stop), [gc1 gcms1] (gc-stats)]
+    (cond-> {:millis (- t1 t0), :gc-count (- gc1 gc0),
+             :gc-millis (- gcms1 gcms0),
+             :jobs (job-counters reports)}
+      alloc (assoc :alloc-bytes alloc))))
+
+(defn ^:private metrics
+  "Sequence of tuples of metric path, value, and regression noise floor for the
+benchmark result `result`.  Omits the sampled, and thus nondeterministic,
+`:alloc-bytes`, which is reported only."
+  [result]
+  (concat
+   (for [[k floor] [[:millis noise-millis] [:gc-millis noise-millis]]
+         :when (contains? result k)]
+     [[k] (get result k) floor])
+   (for [[jname counters] (:jobs result)
+         [counter value] counters
+         :when (compared-counters counter)]
+     [[:jobs jname counter] value 0])))
+
+(defn regressions
+  "Sequence of regression maps for the metrics of the benchmark results map
+`results` exceeding those of `baseline` by more than fraction `tolerance`."
+  [tolerance baseline results]
+  (for [[bench result] results
+        :let [base (get baseline bench)]
+        :when base
+        [path value floor] (metrics result)
+        :let [old (get-in base path)]
+        :when (and (number? old) (number? value)
+                   (< (max (* (+ 1.0 (double tolerance)) old) (+ old floor))
+                      value))]
+    {:bench bench, :metric path, :baseline old, :value value}))
+
+(defn tool
+  "Run the named `benches` (default all) over freshly-generated datasets and
+compare the results to the stored baseline at `parkour.bench.baseline`,
+returning non-zero if any metric regressed by more than the fractional
+`parkour.bench.tolerance`.  Stores the results as the baseline when there is
+none or `parkour.bench.update` is true."
+  [conf & benches]
+  (let [conf (doto conf conf/local-mr! conf/local-fs!)
+        benches (if (seq benches) (map keyword benches) (keys benchmarks))
+        baseline (fs/path (param conf "parkour.bench.baseline"))
+        paths (conf/with-default conf (generate! conf))
+        results (->> benches
+                     (map (juxt identity (partial run-benchmark conf paths)))
+                     (into (sorted-map)))
+        old (when (fs/path-exists? baseline) (util/edn-slurp baseline))]
+    (pp/pprint results)
+    (if (or (nil? old) (param conf "parkour.bench.update"))
+      (do (util/edn-spit baseline (merge old results))
+          (println "Stored baseline" (str baseline))
+          0)
+      (let [regressed (regressions (param conf "parkour.bench.tolerance")
+                                   old results)]
+        (doseq [{:keys [bench metric baseline value]} regressed]
+          (println "REGRESSION" (name bench) metric baseline "->" value))
+        (if (seq regressed) 1 0)))))
+
+(defn -main
+  [& args] (System/exit (tool/run tool args)))
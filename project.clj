@@ -24,20 +24,24 @@
   :codox {:src-dir-uri "https://github.com/damballa/parkour/blob/master/"
           :src-linenum-anchor-prefix "L"
           :sources ["src/clojure"]
-          :exclude [parkour.io.dseq.mapred
+          :exclude [parkour.io.avro.view
+                    parkour.io.dseq.mapred
                     parkour.io.dseq.mapreduce
                     parkour.mapreduce.sink
                     parkour.mapreduce.source
                     parkour.remote.basic
+                    parkour.remote.columnar
                     parkour.remote.dux
                     parkour.remote.mem
                     parkour.remote.mux
+                    parkour.remote.subjob
                     parkour.util
                     parkour.util.shutdown
                     parkour.util.shutdown.hadoop1
                     parkour.util.shutdown.hadoop2]
           :output-dir "tmp/codox"}
-  :aliases {"few" ["with-profile"
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "parkour.bench"]
+            "few" ["with-profile"
                    ~(->> (for [c ["clojure-1-7-0"]
                                h ["hadoop-1-2-1" "hadoop-2-7-1"]]
                            ["default*" c h])
@@ -65,6 +69,7 @@
                     [org.slf4j/slf4j-log4j12 "1.6.1"]
                     [log4j "1.2.17"]]}
      :examples {:source-paths ["examples"]}
+     :bench [:examples {:source-paths ["bench"]}]
      :hadoop-user [:avro-cdh5 :clojure-1-7-0]
      :jobjar [:hadoop-user :examples]
      :dev [:examples
@@ -4,7 +4,7 @@
             [clojure.edn :as edn]
             [letterpress.core :as lp]
             [parkour.conf :as conf]
-            [parkour.cser.readers :refer [data-readers]]
+            [parkour.cser.readers :refer [data-readers var-read]]
             [parkour.cser.printers :refer [data-printers]])
   (:import [java.io Writer]
            [clojure.lang RT]
@@ -45,10 +45,28 @@ cser context of `conf`."
   ([conf x] (with-conf conf (pr-str* x)))
   ([conf x & xs] (with-conf conf (apply pr-str* x xs))))
 
+(def ^:private ^:const offload-key
+  "Configuration key for the cser/EDN length (in characters) above which
+`assoc!`ed values are offloaded to the distributed cache."
+  "parkour.cser.offload.threshold")
+
+(def ^:private ^:const offload-default
+  "Default offload threshold, in characters."
+  (* 256 1024))
+
+(defn ^:private offload
+  "Cser/EDN string `s`, or a reference to a distributed-cache copy of `s` if `s`
+exceeds the offload threshold of the current cser context."
+  [^String s]
+  (let [threshold (conf/get-long *conf* offload-key offload-default)]
+    (if (or (not (pos? threshold)) (<= (.length s) threshold))
+      s
+      ((var-read 'parkour.io.dval/cfile-offload) s))))
+
 (defn ^:private assoc!*
   "Internal implementation for `assoc!`."
   ([conf key val]
-     (conf/assoc! conf key (pr-str* val)))
+     (conf/assoc! conf key (offload (pr-str* val))))
   ([conf key val & kvs]
      (let [conf (assoc!* conf key val)]
        (if (empty? kvs)
@@ -56,7 +74,10 @@ cser context of `conf`."
          (recur conf (first kvs) (second kvs) (nnext kvs))))))
 
 (defn assoc!
-  "Set `key` in `conf` to cser/EDN representation of `val`."
+  "Set `key` in `conf` to cser/EDN representation of `val`.  Representations
+longer than the `parkour.cser.offload.threshold` configuration parameter
+(default 256k characters; non-positive to disable) are written to compressed
+transient files and referenced via the distributed cache."
   {:tag `Configuration}
   ([conf] conf)
   ([conf key val] (with-conf conf (assoc!* conf key val)))
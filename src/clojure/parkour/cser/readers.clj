@@ -18,9 +18,14 @@
   "Tagged literal reader for Java compiled regular expressions."
   [x] (Pattern/compile x))
 
+(defn cfile-read
+  "Tagged literal reader for distributed-cache offloaded cser values."
+  [x] ((var-read 'parkour.io.dval/cfile-read) x))
+
 (def data-readers
   "Custom data readers for cser reading."
   {'parkour/class class-read,
    'parkour/var var-read,
    'parkour/pattern pattern-read,
+   'parkour/cfile cfile-read,
    })
@@ -8,12 +8,14 @@
              ,        (wrapper :as w) (mapreduce :as mr) (reducers :as pr)]
             [parkour.io (dseq :as dseq) (dsink :as dsink)
              ,          (mux :as mux) (dux :as dux)]
+            [parkour.graph.timeline :as tl]
+            [parkour.tuning :as tuning]
             [parkour.util.shutdown :as shutdown]
             [parkour.util :refer
              [ignore-errors returning doto-let prev-reset!]])
   (:import [java.io IOException]
            [java.util.concurrent ExecutionException]
-           [clojure.lang Var]
+           [clojure.lang IObj Var]
            [org.apache.hadoop.io NullWritable]
            [org.apache.hadoop.mapreduce Job]
            [org.apache.hadoop.mapreduce.lib.partition HashPartitioner]))
@@ -353,26 +355,31 @@ and named `jname`."
 (defn run-job
   "Run `job` and wait synchronously for it to complete.  Kills the job on
 exceptions or JVM shutdown.  Unlike the `Job#waitForCompletion()` method, does
-not swallow `InterruptedException`."
-  [^Job job]
-  (let [interval (conf/get-int job "jobclient.completion.poll.interval" 5000)
-        jname (.getJobName job)
-        abort (abort-fn job)]
-    (shutdown/with-hook abort
-      (try
-        (log/info "Launching job" jname)
-        (.submit job)
-        (while (not (job-complete? job))
-          (Thread/sleep interval))
-        (doto-let [result (job-successful? job)]
-          (if result
-            (log/info "Job" jname "succeeded")
-            (do
-              (log/warn "Job" jname "failed")
-              (abort))))
-        (catch Exception e
-          (abort)
-          (throw e))))))
+not swallow `InterruptedException`.  If provided, records job events in the node
+timeline atom `tl`."
+  ([job] (run-job job nil))
+  ([^Job job tl]
+     (let [interval (conf/get-int job "jobclient.completion.poll.interval" 5000)
+           jname (.getJobName job)
+           abort (abort-fn job)]
+       (shutdown/with-hook abort
+         (try
+           (log/info "Launching job" jname)
+           (tl/record! tl :submit)
+           (.submit job)
+           (while (not (job-complete? job))
+             (tl/poll! tl job)
+             (Thread/sleep interval))
+           (doto-let [result (job-successful? job)]
+             (tl/complete! tl job result)
+             (if result
+               (log/info "Job" jname "succeeded")
+               (do
+                 (log/warn "Job" jname "failed")
+                 (abort))))
+           (catch Exception e
+             (abort)
+             (throw e)))))))
 
 (def node-fn nil)
 (defmulti node-fn
@@ -398,9 +405,11 @@ base configuration `conf` and job name `jname`."
 (defmethod node-fn :default
   [node conf jname]
   (fn [& args]
+    (tl/record! (::timeline node) :ready)
     (doto-let [job (node-job node conf jname)]
-      (if (run-job job)
-        (ensure-output-paths! job)
+      (if (run-job job (::timeline node))
+        (do (tuning/record! job)
+            (ensure-output-paths! job))
         (let [cause (prev-reset! mr/task-ex nil)
               args (cond-> [(str "Job " jname " failed.") {:jname jname}]
                      (not (nil? cause)) (conj cause))]
@@ -447,22 +456,51 @@ of the nodes-vector and a vector of the leaf-node job-IDs."
   "Job name for `i`th job of `n` produced from var-name `base`."
   [base n i] (format "%s[%d/%d]" base (inc i) n))
 
+(defn ^:private node-timelines
+  "Map from job-ID to fresh timeline atom for each job node in the vector of
+flattened job nodes `nodes`, with names from function `job-name`."
+  [nodes job-name]
+  (let [job? #(not= :input (stage %))
+        job-deps (fn [jid]
+                   (let [node (nodes jid)]
+                     (if (job? node) [jid] (:requires node))))]
+    (->> nodes
+         (r/filter job?)
+         (r/map (fn [{:keys [jid requires]}]
+                  (let [requires (vec (distinct (mapcat job-deps requires)))]
+                    [jid (atom {:jid jid, :jname (job-name jid),
+                                :requires requires})])))
+         (into {}))))
+
+(defn timeline
+  "Execution timeline report for the job graph which produced `dseq`, as per
+`parkour.graph.timeline/report`."
+  [dseq] (-> dseq meta ::timeline))
+
 (defn execute
   "Execute Hadoop jobs for the job graph `graph`, which should be a job graph
 leaf node or vector of leaf nodes.  Jobs are configured starting with base
 configuration `conf` and named based on the string `jname`.  Returns a vector of
-the distributed sequences produced by the job graph leaves."
+the distributed sequences produced by the job graph leaves, each carrying the
+graph execution timeline report as metadata (see `timeline`)."
   [graph conf jname]
   (let [[nodes tails] (flatten-graph graph)
         njobs (- (count nodes) (count tails))
         job-name (partial job-name jname njobs)
+        timelines (node-timelines nodes job-name)
         graph (->> nodes
                    (r/map (fn [{:keys [jid requires], :as node}]
-                            (let [f (node-fn node conf (job-name jid))]
+                            (let [node (assoc node ::timeline (timelines jid))
+                                  f (node-fn node conf (job-name jid))]
                               [jid [requires f]])))
                    (into {}))
-        runner (if (mr/local-runner? conf) graph-delay graph-future)]
-    (run-graph runner graph tails)))
+        runner (if (mr/local-runner? conf) graph-delay graph-future)
+        results (run-graph runner graph tails)
+        report (tl/report (cc/map deref (vals timelines)))]
+    (mapv (fn [result]
+            (cond-> result
+              (instance? IObj result) (vary-meta assoc ::timeline report)))
+          results)))
 
 (defn fexecute
   "As per `execute`, but require and return only a single result desq;
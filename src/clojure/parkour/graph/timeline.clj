@@ -0,0 +1,188 @@
+(ns parkour.graph.timeline
+  "Job graph execution timelines, critical paths, and trace export."
+  (:require [clojure.java.io :as io]
+            [parkour (fs :as fs) (mapreduce :as mr)]
+            [parkour.util :refer [ignore-errors]])
+  (:import [java.io Writer]
+           [clojure.lang Reflector]
+           [org.apache.hadoop.mapreduce Job]))
+
+(def ^:private ^:const task-type
+  "Name of the Hadoop 2 task type enum class."
+  "org.apache.hadoop.mapreduce.TaskType")
+
+(defn ^:internal record!
+  "Record event `k` at the current time in the node timeline atom `tl`, unless
+already recorded."
+  [tl k]
+  (when tl
+    (let [t (System/currentTimeMillis)]
+      (swap! tl #(if (contains? % k) % (assoc % k t))))))
+
+(defn ^:internal poll!
+  "Record the phase events observable from the progress of running `job` in the
+node timeline atom `tl`.  Phase times are accurate to the polling interval."
+  [tl ^Job job]
+  (when tl
+    (when-let [[mp rp] (ignore-errors
+                        [(.mapProgress job) (.reduceProgress job)])]
+      (when (pos? mp) (record! tl :map-start))
+      (when (<= 1.0 mp) (record! tl :map-end))
+      (when (pos? (.getNumReduceTasks job))
+        (when (pos? rp) (record! tl :reduce-start))
+        (when (<= 1.0 rp) (record! tl :reduce-end))))))
+
+(defn ^:private invoke
+  "Result of reflectively invoking the method `name` of `obj` on `args`."
+  [obj ^String name & args]
+  (Reflector/invokeInstanceMethod obj name (object-array args)))
+
+(defn ^:private task-phase
+  "Map of the earliest task start as `start` and latest task finish as `end`
+for the tasks of type `type` -- `\"MAP\"` or `\"REDUCE\"` -- of `job`, per
+the job task reports.  Empty when task reports are unavailable, as under
+Hadoop 1 and the local job runner."
+  [^Job job type start end]
+  (let [reports (ignore-errors
+                 (->> (Enum/valueOf (Class/forName task-type) type)
+                      (invoke job "getTaskReports")
+                      (seq)))
+        times (fn [name]
+                (->> reports (map #(invoke % name)) (filter pos?) seq))]
+    (merge (some->> (times "getStartTime") (apply min) (hash-map start))
+           (some->> (times "getFinishTime") (apply max) (hash-map end)))))
+
+(defn ^:internal complete!
+  "Record the completion of `job` with success status `success?` in the node
+timeline atom `tl`, along with the job counters.  Replaces polled phase times
+with those of the job task reports when available, and otherwise leaves phases
+not observed while polling unrecorded."
+  [tl ^Job job success?]
+  (when tl
+    (record! tl :complete)
+    (let [counters (ignore-errors (mr/counters-map (.getCounters job)))
+          phases (merge (task-phase job "MAP" :map-start :map-end)
+                        (task-phase job "REDUCE" :reduce-start :reduce-end))]
+      (swap! tl merge phases
+             {:status (if success? :succeeded :failed),
+              :counters counters}))))
+
+(defn ^:private elapsed
+  "Milliseconds from event `k0` to event `k1` of node timeline `node`, or `nil`
+if either event was not recorded."
+  [node k0 k1]
+  (let [t0 (get node k0), t1 (get node k1)]
+    (when (and t0 t1) (- t1 t0))))
+
+(defn critical-path
+  "Sequence of the job node timelines of `nodes` forming the critical path: the
+latest-completing node, preceded by its latest-completing dependency, and so
+on."
+  [nodes]
+  (let [by-jid (into {} (map (juxt :jid identity) nodes))
+        latest #(some->> % (filter :complete) seq (apply max-key :complete))]
+    (loop [node (latest nodes), path ()]
+      (if (nil? node)
+        path
+        (recur (latest (map by-jid (:requires node))) (cons node path))))))
+
+(defn ^:private path-step
+  "Critical-path summary entry for job node timeline `node`."
+  [node]
+  {:jid (:jid node), :jname (:jname node),
+   :waiting (elapsed node :ready :submit),
+   :pending (elapsed node :submit :map-start),
+   :running (or (elapsed node :map-start :complete)
+                (elapsed node :submit :complete))})
+
+(defn report
+  "Timeline report for the job node timelines `nodes`.  Each node timeline holds
+its `:jid`, `:jname`, job-node dependencies as `:requires`, `:status`,
+`:counters`, and the epoch-millisecond times it became `:ready`, was
+`:submit`ted, started and finished its map (`:map-start`, `:map-end`) and reduce
+(`:reduce-start`, `:reduce-end`) phases, and `:complete`d.  The report holds the
+node timelines as `:nodes`, the overall `:start` and `:end` times, and the
+`:critical-path` summary of per-node `:waiting` (ready to submitted), `:pending`
+(submitted to map start), and `:running` milliseconds."
+  [nodes]
+  (let [nodes (vec (sort-by :jid nodes))
+        path (critical-path nodes)
+        start (some->> nodes (keep :ready) seq (apply min))
+        end (some->> nodes (keep :complete) seq (apply max))]
+    {:nodes nodes, :start start, :end end,
+     :critical-path {:jids (mapv :jid path),
+                     :elapsed (let [t0 (:ready (first path))
+                                    t1 (:complete (last path))]
+                                (when (and t0 t1) (- t1 t0))),
+                     :steps (mapv path-step path)}}))
+
+(defn ^:private trace-event
+  "Chrome trace complete event `name` in category `cat` for node timeline `node`
+from event `k0` to event `k1`, relative to `start`, or `nil` if either event was
+not recorded."
+  [start node name cat k0 k1 & [args]]
+  (when-let [dur (elapsed node k0 k1)]
+    (cond-> {:name name, :cat cat, :ph "X", :pid 1, :tid (:jid node),
+             :ts (* 1000 (- (get node k0) start)), :dur (* 1000 dur)}
+      args (assoc :args args))))
+
+(defn trace-events
+  "Chrome trace events for timeline report `report`."
+  [{:keys [nodes start]}]
+  (->> nodes
+       (mapcat (fn [node]
+                 [{:name "thread_name", :ph "M", :pid 1, :tid (:jid node),
+                   :args {:name (:jname node)}}
+                  (trace-event start node "waiting" "wait" :ready :submit)
+                  (trace-event start node (:jname node) "job" :submit :complete
+                               {:status (:status node),
+                                :counters (:counters node)})
+                  (trace-event start node "map" "phase" :map-start :map-end)
+                  (trace-event start node "reduce" "phase"
+                               :reduce-start :reduce-end)]))
+       (remove nil?)
+       (vec)))
+
+(defn ^:private write-json
+  "Write JSON representation of `x` to `w`."
+  [^Writer w x]
+  (cond
+    (nil? x) (.write w "null")
+    (and (float? x) (or (Double/isNaN x) (Double/isInfinite x)))
+    , (.write w "null")
+    (ratio? x) (write-json w (double x))
+    (or (true? x) (false? x) (number? x)) (.write w (str x))
+    (or (string? x) (keyword? x))
+    , (let [s (if (keyword? x) (name x) x)]
+        (.write w "\"")
+        (doseq [c s]
+          (case c
+            \" (.write w "\\\"")
+            \\ (.write w "\\\\")
+            (if (< (int c) 0x20)
+              (.write w (format "\\u%04x" (int c)))
+              (.write w (int c)))))
+        (.write w "\""))
+    (map? x)
+    , (do (.write w "{")
+          (doseq [[i [k v]] (map-indexed vector x)]
+            (when (pos? i) (.write w ","))
+            (write-json w (if (keyword? k) (name k) (str k)))
+            (.write w ":")
+            (write-json w v))
+          (.write w "}"))
+    (coll? x)
+    , (do (.write w "[")
+          (doseq [[i v] (map-indexed vector x)]
+            (when (pos? i) (.write w ","))
+            (write-json w v))
+          (.write w "]"))
+    :else (write-json w (str x))))
+
+(defn spit-trace
+  "Write timeline report `report` to file `f` in the Chrome trace JSON format,
+as viewable via `chrome://tracing`."
+  [f report]
+  (with-open [w (io/writer (fs/path f))]
+    (write-json w {:traceEvents (trace-events report),
+                   :displayTimeUnit "ms"})))
@@ -5,6 +5,7 @@
             [parkour (conf :as conf) (fs :as fs) (wrapper :as w)
                      (mapreduce :as mr) (reducers :as pr) (cser :as cser)]
             [parkour.io (dseq :as dseq) (dsink :as dsink) (dval :as dval)]
+            [parkour.io.avro (view :as view)]
             [parkour.io.transient :refer [transient-path]]
             [parkour.util :refer [ignore-errors returning]])
   (:import [java.net URI]
@@ -59,14 +60,22 @@ all tuples from the resulting `reduce`able."
 (defn set-input
   "Configure `job` for Avro input with keys or keyvals using expected
 schemas `ks` and `vs`.  Schemas may be `:default` to just directly use
-input writer schema(s)."
+input writer schema(s).  Key schema may be `:view` for keys of lazy map
+views over input records, decoding each field via the input writer
+schema only when first accessed and producing a fully-decoded map when
+modified.  Inputs whose writer schema does not decode as a map, such as
+Abracad tuple schemas, instead produce fully-decoded values.  Each view
+retains its entire decompressed data file block."
   ([^Job job ks]
-     (when-not (identical? :default ks)
-       (AvroJob/setInputKeySchema job (avro/parse-schema ks)))
-     (doto job
-       (set-data-model)
-       (.setInputFormatClass AvroKeyInputFormat)
-       (dseq/set-default-shape! :keys)))
+     (if (identical? :view ks)
+       (view/set-input job)
+       (do
+         (when-not (identical? :default ks)
+           (AvroJob/setInputKeySchema job (avro/parse-schema ks)))
+         (doto job
+           (set-data-model)
+           (.setInputFormatClass AvroKeyInputFormat)
+           (dseq/set-default-shape! :keys)))))
   ([^Job job ks vs]
      (when-not (identical? :default ks)
        (AvroJob/setInputKeySchema job (avro/parse-schema ks)))
@@ -0,0 +1,224 @@
+(ns parkour.io.avro.view
+  "Lazy map views over the binary encoding of Avro data file records."
+  (:require [clojure.string :as str]
+            [abracad.avro :as avro]
+            [parkour (conf :as conf) (mapreduce :as mr)]
+            [parkour.io (dseq :as dseq)])
+  (:import [java.io ByteArrayInputStream Writer]
+           [java.nio ByteBuffer]
+           [java.util Arrays Map]
+           [clojure.lang AFn Associative IFn IHashEq ILookup IObj]
+           [clojure.lang IPersistentCollection IPersistentMap MapEntry]
+           [clojure.lang MapEquivalence Seqable]
+           [org.apache.avro Schema Schema$Field Schema$Type]
+           [org.apache.avro.file DataFileReader]
+           [org.apache.avro.generic GenericDatumReader]
+           [org.apache.avro.io DatumReader DecoderFactory]
+           [org.apache.avro.mapred FsInput]
+           [org.apache.avro.mapreduce AvroKeyInputFormat]
+           [org.apache.hadoop.mapreduce Job JobContext]
+           [org.apache.hadoop.mapreduce.lib.input FileSplit]
+           [parkour.hadoop RecordSeqable]))
+
+(def ^:private unread
+  "Sentinel value for record view fields not yet decoded."
+  (Object.))
+
+(defn ^:private field-key
+  "Map key for record field `field`, demangled as for Abracad-decoded records."
+  [^Schema$Field field] (-> field .name (str/replace \_ \-) keyword))
+
+(defn ^:private field-value
+  "Value of field `i` of the record encoded in `bytes` at field `offsets`,
+decoding via field datum reader `i` of `readers` when not already memoized in
+`vals`."
+  [readers ^bytes bytes ^ints offsets ^objects vals i]
+  (let [i (int i), v (aget vals i)]
+    (if-not (identical? unread v)
+      v
+      (let [off (aget offsets i), len (- (aget offsets (inc i)) off)
+            in (.binaryDecoder (DecoderFactory/get) bytes off len nil)
+            v (.read ^DatumReader (nth readers i) nil in)]
+        (aset vals i v)
+        v))))
+
+(defn ^:private fields-map
+  "Persistent map of all fields of the record encoded in `bytes`, decoding as
+per `field-value`."
+  [ks readers bytes offsets vals]
+  (persistent!
+   (reduce (fn [m i]
+             (assoc! m (nth ks i) (field-value readers bytes offsets vals i)))
+           (transient {}) (range (count ks)))))
+
+(defprotocol ^:private Realizable
+  (realize [view] "Fully-decoded persistent map for `view`."))
+
+;; Lazy record view
+(deftype RecordView [ks index readers ^bytes bytes ^ints offsets ^objects vals
+                     ^:unsynchronized-mutable realized meta]
+  Realizable
+  (realize [_]
+    (or realized
+        (let [m (cond-> (fields-map ks readers bytes offsets vals)
+                  meta (with-meta meta))]
+          (set! realized m)
+          m)))
+
+  ILookup
+  (valAt [this k] (.valAt this k nil))
+  (valAt [_ k nf]
+    (if-let [i (get index k)]
+      (field-value readers bytes offsets vals i)
+      nf))
+
+  Associative
+  (containsKey [_ k] (contains? index k))
+  (entryAt [this k]
+    (when (contains? index k)
+      (MapEntry. k (.valAt this k))))
+  (assoc [this k v] (assoc (realize this) k v))
+
+  IPersistentMap
+  (assocEx [this k v] (.assocEx ^IPersistentMap (realize this) k v))
+  (without [this k] (dissoc (realize this) k))
+
+  IPersistentCollection
+  (count [_] (count ks))
+  (cons [this o] (conj (realize this) o))
+  (empty [_] {})
+  (equiv [this o] (.equiv ^IPersistentCollection (realize this) o))
+
+  Seqable
+  (seq [this] (seq (realize this)))
+
+  Iterable
+  (iterator [this] (.iterator ^Iterable (realize this)))
+
+  IFn
+  (invoke [this k] (.valAt this k))
+  (invoke [this k nf] (.valAt this k nf))
+  (applyTo [this args] (AFn/applyToHelper this args))
+
+  IObj
+  (meta [_] meta)
+  (withMeta [_ meta]
+    (RecordView. ks index readers bytes offsets vals nil meta))
+
+  MapEquivalence
+
+  IHashEq
+  (hasheq [this] (hash (realize this)))
+
+  Map
+  (size [_] (count ks))
+  (isEmpty [_] (zero? (count ks)))
+  (get [this k] (.valAt this k))
+  (containsValue [this v] (.containsValue ^Map (realize this) v))
+  (keySet [this] (.keySet ^Map (realize this)))
+  (values [this] (.values ^Map (realize this)))
+  (entrySet [this] (.entrySet ^Map (realize this)))
+  (put [_ k v] (throw (UnsupportedOperationException.)))
+  (remove [_ k] (throw (UnsupportedOperationException.)))
+  (putAll [_ m] (throw (UnsupportedOperationException.)))
+  (clear [_] (throw (UnsupportedOperationException.)))
+
+  Object
+  (hashCode [this] (.hashCode ^Object (realize this)))
+  (equals [this o] (.equals ^Object (realize this) o))
+  (toString [this] (str (realize this))))
+
+(defmethod print-method RecordView
+  [view ^Writer w] (print-method (realize view) w))
+
+(defn ^:private record-layout
+  "Map of the field keys, key indices, field schemas, and field datum readers
+for records of record schema `schema`."
+  [^Schema schema]
+  (let [fields (.getFields schema), ks (mapv field-key fields)
+        schemas (mapv #(.schema ^Schema$Field %) fields)]
+    {:ks ks, :index (zipmap ks (range)), :schemas schemas,
+     :readers (mapv avro/datum-reader schemas)}))
+
+(defn ^:private block-bytes
+  "Copy of the remaining bytes of `buf`, which the data file reader may reuse
+for subsequent blocks."
+  {:tag 'bytes}
+  [^ByteBuffer buf]
+  (let [bytes (byte-array (.remaining buf))]
+    (.get (.duplicate buf) bytes)
+    bytes))
+
+(defn ^:private block-records
+  "Vector of the `n` records encoded in block buffer `buf`.  Produces record
+views over the block bytes as per `layout` for record schemas, and
+fully-decoded values otherwise."
+  [^Schema schema layout buf n]
+  (let [bytes (block-bytes buf), len (alength bytes)
+        in (ByteArrayInputStream. bytes)
+        decoder (.directBinaryDecoder (DecoderFactory/get) in nil)]
+    (if-not layout
+      (let [^DatumReader reader (avro/datum-reader schema)]
+        (vec (repeatedly n #(.read reader nil decoder))))
+      (let [{:keys [ks index schemas readers]} layout, nfields (count ks)]
+        (loop [i 0, views (transient [])]
+          (if (== i n)
+            (persistent! views)
+            (let [offsets (int-array (inc nfields))]
+              (dotimes [f nfields]
+                (aset offsets f (int (- len (.available in))))
+                (GenericDatumReader/skip ^Schema (nth schemas f) decoder))
+              (aset offsets nfields (int (- len (.available in))))
+              (recur (inc i)
+                     (conj! views (RecordView. ks index readers bytes offsets
+                                               (doto (object-array nfields)
+                                                 (Arrays/fill unread))
+                                               nil nil))))))))))
+
+(defn ^:private view-schema?
+  "True iff records of `schema` decode as maps, and thus may be viewed lazily.
+Excludes record schemas which set a non-map `abracad.reader`, such as tuple
+schemas decoding as vectors."
+  [^Schema schema]
+  (and (= Schema$Type/RECORD (.getType schema))
+       (contains? #{nil "map"} (.getProp schema "abracad.reader"))))
+
+(defn ^:private record-seq
+  "Lazy seq of the records of data file `reader` in blocks starting prior to the
+sync point following byte position `end`."
+  [^DataFileReader reader end]
+  (let [schema (.getSchema reader)
+        layout (when (view-schema? schema) (record-layout schema))]
+    ((fn step []
+       (lazy-seq
+        (when (and (.hasNext reader) (not (.pastSync reader end)))
+          (let [buf (.nextBlock reader), n (.getBlockCount reader)]
+            (concat (block-records schema layout buf n) (step)))))))))
+
+(defn ^:private get-splits
+  "Avro data file input splits for the input paths of `context`."
+  [^JobContext context] (.getSplits (AvroKeyInputFormat.) context))
+
+(defn ^:private record-seqable
+  "Record seqable of the records of the data file blocks of `split`."
+  [^FileSplit split context]
+  (let [start (.getStart split), end (+ start (.getLength split))
+        input (FsInput. (.getPath split) (conf/ig context))
+        reader (doto (DataFileReader. input (GenericDatumReader.))
+                 (.sync start))]
+    (reify RecordSeqable
+      (count [_] (int (min Integer/MAX_VALUE (.getLength split))))
+      (seq [_] (record-seq reader end))
+      (close [_] (.close reader)))))
+
+(defn set-input
+  "Configure `job` for Avro input of lazy record views, as keys.  Produces
+fully-decoded values for inputs with non-record or non-map-decoding schemas.
+Each view retains the entire decompressed data file block holding its record.
+Views support metadata without decoding, and become fully-decoded maps, keeping
+their metadata, when modified."
+  [^Job job]
+  (doto job
+    (.setInputFormatClass
+     (mr/input-format! job #'get-splits [] #'record-seqable []))
+    (dseq/set-default-shape! :keys)))
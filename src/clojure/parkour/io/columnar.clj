@@ -0,0 +1,62 @@
+(ns parkour.io.columnar
+  "Columnar files of map records, with per-block column statistics."
+  (:require [parkour (conf :as conf) (cser :as cser) (fs :as fs)]
+            [parkour.io (dseq :as dseq) (dsink :as dsink)]
+            [parkour.io.transient :refer [transient-path]]
+            [parkour.remote.columnar :as rcol])
+  (:import [org.apache.hadoop.io NullWritable]
+           [org.apache.hadoop.mapreduce Job]
+           [org.apache.hadoop.mapreduce.lib.input FileInputFormat]
+           [org.apache.hadoop.mapreduce.lib.output FileOutputFormat]
+           [parkour.hadoop Columnar$InputFormat Columnar$OutputFormat]))
+
+(defn dseq
+  "Distributed sequence of the map records in the columnar files at `paths`, as
+configured by the map `options`.  Available options are:
+  `:columns` -- Collection of the columns (record keys) to read (default all);
+  `:where` -- Predicate which records must satisfy (default none).
+Predicates are vectors of an operator keyword followed by its arguments:
+  `[:= col x]`, `[:not= col x]`, `[:< col x]`, `[:<= col x]`, `[:> col x]`,
+    `[:>= col x]` -- Compare the value of column `col` to `x`;
+  `[:between col x y]` -- Value of `col` is between `x` and `y` inclusive;
+  `[:in col xs]` -- Value of `col` is equal to some member of `xs`;
+  `[:and & preds]`, `[:or & preds]`, `[:not pred]` -- Logical combinations.
+Comparisons are as per `compare`, and `nil` or incomparable values never match.
+Blocks and splits whose column statistics show that no record may match are
+skipped entirely, and only the projected and predicate columns are decoded.
+Records omit `nil`-valued columns."
+  [options & paths]
+  (let [{:keys [columns where]} options]
+    (rcol/validate where)
+    (dseq/dseq
+     (fn [^Job job]
+       (doto job
+         (.setInputFormatClass Columnar$InputFormat)
+         (cser/assoc! #_job
+           rcol/columns-key (some-> columns vec)
+           rcol/where-key where)
+         (FileInputFormat/setInputPaths (fs/path-array paths))
+         (dseq/set-default-shape! :keys))))))
+
+(defmethod dseq/input-paths* Columnar$InputFormat
+  [^Job job] (vec (FileInputFormat/getInputPaths job)))
+
+(defn dsink
+  "Distributed sink writing map records as columnar files at `path`, or a
+transient path if not provided.  Available `options` are:
+  `:block-rows` -- Number of records per block (default 16384)."
+  ([] (dsink (transient-path)))
+  ([path] (dsink {} path))
+  ([options path]
+     (let [{:keys [block-rows]} options]
+       (dsink/dsink
+        (dseq {} path)
+        (fn [^Job job]
+          (when block-rows
+            (conf/assoc! job rcol/block-rows-key block-rows))
+          (doto job
+            (.setOutputFormatClass Columnar$OutputFormat)
+            (.setOutputKeyClass Object)
+            (.setOutputValueClass NullWritable)
+            (FileOutputFormat/setOutputPath (fs/path path))
+            (dsink/set-default-shape! :keys)))))))
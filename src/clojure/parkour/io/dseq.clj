@@ -2,7 +2,7 @@
   (:require [clojure.core.protocols :as ccp]
             [clojure.core.reducers :as r]
             [parkour (conf :as conf) (cser :as cser) (cstep :as cstep)
-             ,       (wrapper :as w) (fs :as fs)]
+             ,       (wrapper :as w) (fs :as fs) (reducers :as pr)]
             [parkour.mapreduce (source :as src)]
             [parkour.io.dseq (mapred :as mr1) (mapreduce :as mr2)]
             [parkour.util :refer [ignore-errors coerce]])
@@ -59,6 +59,11 @@ tuple source will not automatically unwrap values."
     (with-open [source (source-for step)]
       (r/coll-fold source n combinef reducef)))
 
+  pr/KVReducible
+  (-kv-reduce [this f init]
+    (with-open [source (source-for step)]
+      (pr/-kv-reduce source f init)))
+
   DSeqable
   (-dseq [this] this))
 
@@ -2,7 +2,7 @@
   {:private true}
   (:require [clojure.core.protocols :as ccp]
             [clojure.core.reducers :as r]
-            [parkour (conf :as conf) (wrapper :as w)]
+            [parkour (conf :as conf) (wrapper :as w) (reducers :as pr)]
             [parkour.util :refer [doto-let returning]]
             [parkour.mapreduce (source :as src)]
             [parkour.util :refer [returning]])
@@ -55,6 +55,9 @@
   (coll-fold [this _ combinef reducef]
     (src/source-fold this combinef reducef))
 
+  pr/KVReducible
+  (-kv-reduce [this f init] (src/source-reduce-kv this f init))
+
   Seqable
   (seq [this] (src/source-seq this)))
 
@@ -3,8 +3,10 @@
   (:require [clojure.core.protocols :as ccp]
             [clojure.core.reducers :as r]
             [transduce.reducers :as tr]
-            [parkour (conf :as conf) (wrapper :as w) (mapreduce :as mr)]
+            [parkour (conf :as conf) (wrapper :as w) (mapreduce :as mr)
+             ,       (reducers :as pr)]
             [parkour.mapreduce (source :as src)]
+            [parkour.io (splits :as splits)]
             [parkour.util :refer [ignore-errors returning realized-seq]])
   (:import [clojure.lang IPending Seqable]
            [java.io Closeable]
@@ -45,6 +47,9 @@
       (coll-fold [this _ combinef reducef]
         (src/source-fold this combinef reducef))
 
+      pr/KVReducible
+      (-kv-reduce [this f init] (src/source-reduce-kv this f init))
+
       Seqable
       (seq [this] (src/source-seq this)))))
 
@@ -70,6 +75,9 @@
     (coll-fold [this _ combinef reducef]
       (src/source-fold this combinef reducef))
 
+    pr/KVReducible
+    (-kv-reduce [this f init] (src/source-reduce-kv this f init))
+
     Seqable
     (seq [this] (src/source-seq this))))
 
@@ -82,7 +90,7 @@
 (defn tuple-source
   [job klass]
   (let [^InputFormat ifi (w/new-instance job klass)
-        splits (seq (.getSplits ifi job))]
+        splits (seq (splits/input-splits job ifi))]
     (case (count splits)
       0 (src/empty-source job)
       1 (split-source job ifi (first splits))
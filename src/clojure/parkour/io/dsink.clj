@@ -45,7 +45,8 @@ sink produces the `nil` dseq."
 
 (defn sink-for
   "Local sink for writing tuples as written via `dsink`.  Must `.close` to
-flush, as via `with-open`."
+flush, as via `with-open`.  Writes asynchronously as per `mr/async-sink` when
+the `parkour.sink.async` parameter is true."
   {:tag `Closeable}
   [dsink]
   (let [job (cstep/apply! dsink), conf (conf/ig job), tac (mr/tac conf)
@@ -56,7 +57,7 @@ flush, as via `with-open`."
              (.setupJob job)
              (.setupTask tac))
         rw (.getRecordWriter of tac)]
-    (snk/wrap-sink
+    (->>
      (reify
        Configurable (getConf [_] conf)
        w/Wrapper (unwrap [_] rw)
@@ -68,7 +69,9 @@ flush, as via `with-open`."
          (.close rw tac)
          (when (.needsTaskCommit oc tac)
            (.commitTask oc tac))
-         (.commitJob oc job))))))
+         (.commitJob oc job)))
+     (snk/wrap-sink)
+     (snk/maybe-async))))
 
 (defn with-dseq*
   "Function form of `with-dseq`."
@@ -87,11 +87,11 @@ multiplex distributed sequence of all component sinks' sequences."
 
 (defn ^:private new-rw
   "Return new demultiplexing output sink for output `oname` and file output
-basename `base`."
+basename `base`, writing asynchronously if so configured."
   [context oname base]
   (let [[jobs ofs rws] (dux-state context)
         of (get ofs oname), ^Job job (get jobs oname)
-        conf (-> job conf/clone (cond-> base (set-output-name base)))
+        conf (if base (-> job conf/clone (set-output-name base)) job)
         tac (mr/tac conf context), c (get-counter context oname)
         ckey (.getOutputKeyClass job), cval (.getOutputValueClass job)
         rw (.getRecordWriter ^OutputFormat of tac)]
@@ -106,6 +106,7 @@ basename `base`."
              (.write rw key val)
              (.increment c 1)))
          (snk/wrap-sink)
+         (snk/maybe-async)
          (s/scoped!))))
 
 (defn get-sink
@@ -8,6 +8,8 @@
             [parkour.util :as util :refer [doto-let]])
   (:import [java.io Closeable Writer]
            [java.net URI]
+           [java.util LinkedHashMap]
+           [java.util.zip GZIPInputStream GZIPOutputStream]
            [clojure.lang IDeref IObj IPending]
            [parkour.hadoop RecordSeqable]
            [org.apache.hadoop.fs Path]
@@ -89,6 +91,47 @@ original remote path under mixed-mode job execution."
            (resolve-source)
            (dcpath* dcname)))))
 
+;; Offloaded cser values
+
+(def ^:private ^:const cfile-cache-size
+  "Maximum number of cached offloaded cser values."
+  16)
+
+(def ^:private ^LinkedHashMap cfile-cache
+  "LRU cache of delays over loaded offloaded cser values, keyed by source path."
+  (proxy [LinkedHashMap] [16 0.75 true]
+    (removeEldestEntry [_]
+      (> (.size ^LinkedHashMap this) cfile-cache-size))))
+
+(defn ^:internal cfile-offload
+  "Write cser/EDN string `s` to a compressed transient file, adding it to the
+distributed cache of the current cser context.  Return cser/EDN string which
+deserializes as the value `s` represents."
+  [^String s]
+  (let [source (transient-path)
+        dcname (cache-name source)]
+    (with-open [^Writer w (-> source io/output-stream GZIPOutputStream.
+                              (io/writer :encoding "UTF-8"))]
+      (.write w s))
+    (fs/distcache! cser/*conf* {dcname source})
+    (str "#parkour/cfile " (pr-str dcname))))
+
+(defn ^:internal cfile-read
+  "EDN tagged-literal reader for offloaded cser values.  Each value is loaded and
+deserialized at most once per JVM while cached."
+  [dcname]
+  (let [source (dcpath-reader dcname)
+        conf cser/*conf*
+        load #(with-open [r (-> source io/input-stream GZIPInputStream.
+                                (io/reader :encoding "UTF-8"))]
+                (cser/read-string conf (slurp r)))
+        value (locking cfile-cache
+                (let [k (str source)]
+                  (or (.get cfile-cache k)
+                      (doto-let [value (delay (load))]
+                        (.put cfile-cache k value)))))]
+    @value))
+
 ;; Distributed value
 (deftype DVal [value form]
   Object
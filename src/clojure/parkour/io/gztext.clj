@@ -0,0 +1,378 @@
+(ns parkour.io.gztext
+  "Splittable line-oriented text in gzip files, via sidecar seek indexes."
+  (:require [clojure.tools.logging :as log]
+            [parkour (conf :as conf) (fs :as fs) (mapreduce :as mr)]
+            [parkour.io (dseq :as dseq)]
+            [parkour.util :as util])
+  (:import [java.io InputStream PushbackInputStream SequenceInputStream]
+           [java.util Enumeration]
+           [java.util.zip GZIPInputStream GZIPOutputStream Inflater]
+           [org.apache.hadoop.fs BlockLocation FileStatus FileSystem]
+           [org.apache.hadoop.fs FSDataInputStream Path]
+           [org.apache.hadoop.io Text]
+           [org.apache.hadoop.mapreduce Job JobContext]
+           [org.apache.hadoop.mapreduce.lib.input FileInputFormat]
+           [org.apache.hadoop.util LineReader]
+           [parkour.hadoop RecordSeqable]))
+
+(def ^:private ^:const buffer-size
+  "Size in bytes of the buffers used for reading and writing gzip data."
+  65536)
+
+(def ^:private ^:const index-suffix
+  "File name suffix of the sidecar seek index of a gzip file."
+  ".pkidx")
+
+(def ^:private ^:const split-bytes-key
+  "Configuration key for the target compressed size of input splits."
+  "parkour.gztext.split.bytes")
+
+(def ^:private ^:const split-bytes-default
+  "Default target compressed size in bytes of input splits."
+  (* 64 1024 1024))
+
+(def ^:private ^:const block-bytes-key
+  "Configuration key for the minimum uncompressed size of re-blocked members."
+  "parkour.gztext.block.bytes")
+
+(def ^:private ^:const block-bytes-default
+  "Default minimum uncompressed size in bytes of re-blocked members."
+  (* 4 1024 1024))
+
+(defn index-path
+  "Path of the sidecar seek index for the gzip file at `p`."
+  {:tag `Path}
+  [p] (fs/path (str (fs/path p) index-suffix)))
+
+(defn ^:private read-byte
+  "Next byte of gzip data from `in`, throwing at the end of the stream."
+  ^long [^InputStream in]
+  (let [b (.read in)]
+    (if (neg? b)
+      (throw (ex-info "Truncated gzip data." {}))
+      b)))
+
+(defn ^:private read-header
+  "Consume a gzip member header from `in`, returning its length in bytes, or
+`nil` at the end of the stream."
+  [^InputStream in]
+  (let [id1 (.read in)]
+    (when-not (neg? id1)
+      (let [id2 (read-byte in), cm (read-byte in), flg (read-byte in)
+            skip-string #(loop [n 1]
+                           (if (zero? (read-byte in)) n (recur (inc n))))]
+        (when-not (and (== 0x1f id1) (== 0x8b id2) (== 8 cm))
+          (throw (ex-info "Not gzip data." {:magic [id1 id2 cm]})))
+        (dotimes [_ 6] (read-byte in))
+        (let [extra (if-not (bit-test flg 2)
+                      0
+                      (let [xlen (+ (read-byte in) (* 256 (read-byte in)))]
+                        (dotimes [_ xlen] (read-byte in))
+                        (+ 2 xlen)))
+              fname (if (bit-test flg 3) (skip-string) 0)
+              fcomment (if (bit-test flg 4) (skip-string) 0)
+              fhcrc (if-not (bit-test flg 1)
+                      0
+                      (do (read-byte in) (read-byte in) 2))]
+          (+ 10 extra fname fcomment fhcrc))))))
+
+(defn ^:private inflate-member
+  "Inflate the deflate data and consume the trailer of the gzip member at the
+current position of `in`, invoking `f` with `obuf` and the output byte count
+for each inflated chunk.  Returns the number of compressed bytes consumed."
+  [^PushbackInputStream in ^bytes ibuf ^bytes obuf f]
+  (let [inf (Inflater. true)]
+    (try
+      (loop [fed 0, n 0]
+        (cond
+          (.finished inf)
+          , (let [left (.getRemaining inf)]
+              (when (pos? left) (.unread in ibuf (int (- n left)) (int left)))
+              (dotimes [_ 8] (read-byte in))
+              (+ (- fed left) 8))
+          (.needsInput inf)
+          , (let [n (long (.read in ibuf))]
+              (when (neg? n)
+                (throw (ex-info "Truncated gzip data." {})))
+              (.setInput inf ibuf 0 (int n))
+              (recur (+ fed n) n))
+          :else
+          , (let [k (.inflate inf obuf)]
+              (when (pos? k) (f obuf k))
+              (recur fed n))))
+      (finally
+        (.end inf)))))
+
+(defn ^:private newline-index
+  "Index of the first newline in `buf` between `start` and `end`, or -1."
+  ^long [^bytes buf ^long start ^long end]
+  (loop [i start]
+    (cond (>= i end) -1
+          (== 10 (aget buf i)) i
+          :else (recur (inc i)))))
+
+(defn ^:private scan
+  "Vector of `[offset clength ulength skip]` tuples for the members of the gzip
+data in `in`, where `skip` is the number of uncompressed bytes from the start of
+the member to its first line start, or `nil` if the member contains none."
+  [^InputStream in]
+  (let [in (PushbackInputStream. in buffer-size)
+        ibuf (byte-array buffer-size), obuf (byte-array buffer-size)
+        members (atom []), pending (atom []), upos (atom 0), nl? (atom true)
+        f (fn [^bytes buf ^long n]
+            (let [base (long @upos)]
+              (when (seq @pending)
+                (let [i (newline-index buf 0 n)]
+                  (when-not (neg? i)
+                    (doseq [k @pending]
+                      (swap! members assoc-in [k :skip]
+                             (- (+ base i 1) (get-in @members [k :ustart]))))
+                    (reset! pending []))))
+              (reset! nl? (== 10 (aget buf (dec n))))
+              (reset! upos (+ base n))))]
+    (loop [offset 0]
+      (when-let [hlen (read-header in)]
+        (let [k (count @members), ustart @upos]
+          (swap! members conj {:offset offset, :ustart ustart,
+                               :skip (when @nl? 0)})
+          (when-not @nl? (swap! pending conj k))
+          (let [clength (+ hlen (inflate-member in ibuf obuf f))]
+            (swap! members update-in [k] assoc
+                   :clength clength, :ulength (- @upos ustart))
+            (recur (+ offset clength))))))
+    (vec (map-indexed (fn [k {:keys [offset clength ulength skip]}]
+                        [offset clength ulength
+                         (when (or (zero? k) (and skip (< skip ulength)))
+                           skip)])
+                      @members))))
+
+(defn ^:private read-index
+  "Member tuples from the seek index of the gzip file `status` in `fs`, or `nil`
+if the file has no current index."
+  [^FileSystem fs ^FileStatus status]
+  (let [ip (index-path (.getPath status))]
+    (when (fs/path-exists? fs ip)
+      (let [index (util/edn-slurp ip :fs fs)]
+        (if (= (.getLen status) (:length index))
+          (:members index)
+          (log/warn "Ignoring stale seek index" (str ip)))))))
+
+(defn index!
+  "Scan the gzip file at `p` once, writing to its sidecar `index-path` a seek
+index of the file's decompression restart points aligned to line boundaries.
+Restart points are the starts of the concatenated gzip members of the file, as
+produced by e.g. `bgzip`, by concatenating gzip files, or by `reblock!`.
+Returns the index."
+  ([p] (index! (conf/ig) p))
+  ([conf p]
+     (let [p (fs/path p), fs (fs/path-fs conf p)
+           status (.getFileStatus ^FileSystem fs p)
+           members (with-open [in (fs/path-open fs p)] (scan in))
+           index {:length (.getLen status), :members members}]
+       (when (and (= 1 (count members))
+                  (< (conf/get-long conf split-bytes-key split-bytes-default)
+                     (.getLen status)))
+         (log/warn "Gzip file" (str p) "has a single member and cannot be"
+                   "split; consider `reblock!`ing it"))
+       (util/edn-spit (index-path p) index :fs fs)
+       index)))
+
+(defn reblock!
+  "Recompress the gzip file at `src` to `dst` as concatenated gzip members, each
+ending on a line boundary and holding at least `parkour.gztext.block.bytes`
+uncompressed bytes (default 4MiB), then `index!` the result.  Returns the index
+of `dst`."
+  ([src dst] (reblock! (conf/ig) src dst))
+  ([conf src dst]
+     (let [src (fs/path src), dst (fs/path dst)
+           block-bytes (conf/get-long conf block-bytes-key block-bytes-default)
+           buf (byte-array buffer-size)]
+       (with-open [in (GZIPInputStream. (fs/path-open (fs/path-fs conf src) src)
+                                        buffer-size)
+                   out (fs/path-create (fs/path-fs conf dst) dst)]
+         (loop [^GZIPOutputStream gz nil, size 0]
+           (let [n (long (.read in buf))]
+             (cond
+               (neg? n) (when gz (.finish gz))
+               (zero? n) (recur gz size)
+               :else
+               , (let [^GZIPOutputStream gz
+                       , (or gz (GZIPOutputStream. out buffer-size))
+                       i (newline-index buf (max 0 (- block-bytes size)) n)]
+                   (if (neg? i)
+                     (do (.write gz buf 0 (int n))
+                         (recur gz (+ size n)))
+                     (let [i (inc i), more (- n i)]
+                       (.write gz buf 0 (int i))
+                       (.finish gz)
+                       (if (zero? more)
+                         (recur nil 0)
+                         (let [gz (GZIPOutputStream. out buffer-size)]
+                           (.write gz buf (int i) (int more))
+                           (recur gz more))))))))))
+       (index! conf dst))))
+
+(defn ^:private input-files
+  "Sequence of filesystem & file-status pairs for the non-hidden, non-index
+input files of `context`."
+  [^JobContext context]
+  (let [conf (conf/ig context)]
+    (for [^Path p (FileInputFormat/getInputPaths context)
+          :let [fs (fs/path-fs conf p)
+                statuses (or (.globStatus ^FileSystem fs p)
+                             (throw (ex-info (str "Input path does not exist: "
+                                                  p) {:path (str p)})))]
+          ^FileStatus status statuses
+          ^FileStatus status (if (.isDir status)
+                               (.listStatus ^FileSystem fs (.getPath status))
+                               [status])
+          :let [name (-> status .getPath .getName)]
+          :when (not (or (.isDir status) (.endsWith name index-suffix)
+                         (.startsWith name "_") (.startsWith name ".")))]
+      [fs status])))
+
+(defn ^:private block-locations
+  "Hosts holding the filesystem block at `offset` of file `status`."
+  [^FileSystem fs ^FileStatus status ^long offset]
+  (some->> (.getFileBlockLocations fs status offset 1)
+           (first)
+           (#(.getHosts ^BlockLocation %))
+           (vec)))
+
+(defn ^:private restart-points
+  "Indices of the members of `members` at which to start splits of at least
+`split-bytes` compressed bytes."
+  [^long split-bytes members]
+  (reduce (fn [starts k]
+            (let [[offset _ _ skip] (members k)
+                  [start] (members (peek starts))]
+              (if (and skip (<= split-bytes (- (long offset) (long start))))
+                (conj starts k)
+                starts)))
+          [0] (range 1 (count members))))
+
+(defn ^:private file-splits
+  "Split data for gzip file `status` in `fs`, splitting at the indexed restart
+points into splits of approximately `split-bytes` compressed bytes."
+  [split-bytes [fs ^FileStatus status]]
+  (let [path (str (.getPath status)), length (.getLen status)
+        members (read-index fs status)]
+    (cond
+      (or (zero? length) (and members (empty? members))) []
+      (nil? members) [{:path path, ::mr/length length,
+                       ::mr/locations (block-locations fs status 0)}]
+      :else
+      , (let [n (count members), starts (restart-points split-bytes members)]
+          (map (fn [i j]
+                 (let [[offset _ _ skip] (members i)
+                       [end _ _ tail] (if (< j n) (members j) [length 0 0 0])]
+                   {:path path,
+                    :members (mapv (comp vec (partial take 2))
+                                   (subvec members i (min n (inc j)))),
+                    :skip skip,
+                    :bytes (-> (reduce + (map #(nth % 2) (subvec members i j)))
+                               (- skip) (+ tail)),
+                    ::mr/length (- end offset),
+                    ::mr/locations (block-locations fs status offset)}))
+               starts (concat (rest starts) [n]))))))
+
+(defn ^:private get-splits
+  "Input splits for the gzip input files of `context`."
+  [^JobContext context]
+  (let [conf (conf/ig context)
+        split-bytes (conf/get-long conf split-bytes-key split-bytes-default)]
+    (mapcat (partial file-splits split-bytes) (input-files context))))
+
+(defn ^:private bounded-stream
+  "Input stream reading at most `n` bytes from `in`."
+  {:tag `InputStream}
+  [^InputStream in n]
+  (let [left (atom (long n))]
+    (proxy [InputStream] []
+      (read
+        ([]
+           (if-not (pos? @left)
+             -1
+             (let [b (.read in)]
+               (when-not (neg? b) (swap! left dec))
+               b)))
+        ([b] (.read ^InputStream this ^bytes b 0 (alength ^bytes b)))
+        ([b off len]
+           (if-not (pos? @left)
+             -1
+             (let [n (.read in ^bytes b (int off) (int (min len @left)))]
+               (when (pos? n) (swap! left - n))
+               n))))
+      (available []
+        (int (min @left (.available in)))))))
+
+(defn ^:private members-stream
+  "Input stream of the uncompressed content of the gzip members at the `offset`
+and `clength` tuples `members` of the file open as `in`."
+  {:tag `InputStream}
+  [^FSDataInputStream in members]
+  (let [members (atom (seq members))]
+    (SequenceInputStream.
+     (reify Enumeration
+       (hasMoreElements [_] (boolean @members))
+       (nextElement [_]
+         (let [[offset clength] (first @members)]
+           (swap! members next)
+           (.seek in (long offset))
+           (GZIPInputStream. (bounded-stream in clength) buffer-size)))))))
+
+(defn ^:private skip-fully
+  "Skip exactly `n` bytes of `in`, throwing if it ends first."
+  [^InputStream in n]
+  (loop [n (long n)]
+    (when (pos? n)
+      (let [k (.skip in n)]
+        (if (pos? k)
+          (recur (- n k))
+          (if (neg? (.read in))
+            (throw (ex-info "Truncated gzip data." {}))
+            (recur (dec n))))))))
+
+(defn ^:private line-seq*
+  "Lazy seq of the lines of `lr`, up to `bytes` bytes if non-`nil`."
+  [^LineReader lr bytes]
+  (let [text (Text.)]
+    ((fn step [^long pos]
+       (lazy-seq
+        (when (or (nil? bytes) (< pos (long bytes)))
+          (let [n (.readLine lr text)]
+            (when (pos? n)
+              (cons (str text) (step (+ pos n))))))))
+     0)))
+
+(defn ^:private record-seqable
+  "Record seqable of the text lines of split `split`."
+  [split context]
+  (let [{:keys [path members skip bytes]} split
+        conf (conf/ig context), p (fs/path path)
+        raw (fs/path-open (fs/path-fs conf p) p)
+        in (if members
+             (doto (members-stream raw members) (skip-fully skip))
+             (GZIPInputStream. raw buffer-size))
+        lr (LineReader. in conf)]
+    (reify RecordSeqable
+      (count [_] (int (min Integer/MAX_VALUE (or bytes 1))))
+      (seq [_] (line-seq* lr bytes))
+      (close [_] (.close lr) (.close raw)))))
+
+(defn dseq
+  "Distributed sequence of the text lines of the gzip files at `paths`.  Files
+with a current seek index as written by `index!` or `reblock!` are split at the
+indexed restart points into splits of approximately
+`parkour.gztext.split.bytes` compressed bytes (default 64MiB), with each split
+starting decompression at its restart point and reading exactly the lines which
+start within it.  Files without an index are read as single splits.  Default
+source shape is `:keys`."
+  [& paths]
+  (dseq/dseq
+   (fn [^Job job]
+     (doto job
+       (FileInputFormat/setInputPaths (fs/path-array paths))
+       (.setInputFormatClass
+        (mr/input-format! job #'get-splits [] #'record-seqable []))
+       (dseq/set-default-shape! :keys)))))
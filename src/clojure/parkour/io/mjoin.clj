@@ -0,0 +1,245 @@
+(ns parkour.io.mjoin
+  "Map-side merge joins of co-partitioned, sorted distributed sequences."
+  (:require [parkour (conf :as conf) (fs :as fs) (cstep :as cstep)
+             ,       (mapreduce :as mr) (wrapper :as w)]
+            [parkour.io (dseq :as dseq)]
+            [parkour.remote (subjob :as sj)])
+  (:import [java.io Closeable]
+           [java.util Comparator]
+           [org.apache.avro.mapred AvroWrapper]
+           [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs FileStatus FileSystem Path BlockLocation]
+           [org.apache.hadoop.io WritableComparable WritableComparator]
+           [org.apache.hadoop.mapreduce InputFormat Job JobContext]
+           [org.apache.hadoop.mapreduce Partitioner RecordReader]
+           [org.apache.hadoop.mapreduce.lib.input FileSplit]
+           [org.apache.hadoop.util ReflectionUtils]
+           [parkour.hadoop RecordSeqable]))
+
+(def ^:private part-re
+  "Regular expression matching job output part file names, capturing the
+partition number."
+  #"^part-(?:[mr]-)?(\d+)(?:\.[^/]*)?$")
+
+(defn ^:private part-files
+  "Sorted vector of tuples of partition number and file status for the part
+files of the single input directory of `job`."
+  [^Job job]
+  (let [paths (dseq/input-paths job)]
+    (when-not (= 1 (count paths))
+      (throw (ex-info "Merge-join inputs must each be a single directory."
+                      {:paths (mapv str paths)})))
+    (let [path (fs/path (first paths)), fs (fs/path-fs job path)]
+      (->> (.listStatus ^FileSystem fs ^Path path)
+           (keep (fn [^FileStatus status]
+                   (when-let [[_ n] (->> status .getPath .getName
+                                         (re-matches part-re))]
+                     [(Long/parseLong n) status])))
+           (sort-by first)
+           (vec)))))
+
+(defn ^:private check-parts
+  "Verify that the vectors of part files `parts` for each input describe
+identically partitioned outputs with every partition present, throwing if not.
+Returns the number of partitions."
+  [parts]
+  (let [nums (map (partial mapv first) parts)]
+    (when (some empty? nums)
+      (throw (ex-info "Merge-join input has no part files."
+                      {:counts (mapv count nums)})))
+    (when-not (apply = nums)
+      (throw (ex-info "Merge-join inputs are not compatibly partitioned."
+                      {:counts (mapv count nums)})))
+    (let [nums (first nums), n (count nums)]
+      (when-not (= nums (range n))
+        (throw (ex-info "Merge-join inputs are missing partitions."
+                        {:partitions nums})))
+      n)))
+
+(defn ^:private first-hosts
+  "Hosts holding the first block of the file `status`."
+  [conf ^FileStatus status]
+  (let [fs (fs/path-fs conf (.getPath status))]
+    (some->> (.getFileBlockLocations fs status 0 1)
+             (first)
+             (#(.getHosts ^BlockLocation %))
+             (vec))))
+
+(defn ^:private get-splits
+  "Input split data pairing the same-partition part files of each input
+configuration diff in `subconfs`."
+  [^JobContext context subconfs]
+  (let [conf (conf/ig context)
+        jobs (map (partial sj/job conf) subconfs)
+        parts (mapv part-files jobs)
+        nparts (check-parts parts)]
+    (apply map (fn [& parts]
+                 (let [statuses (map second parts)
+                       lengths (mapv #(.getLen ^FileStatus %) statuses)]
+                   {:partition (ffirst parts), :nparts nparts,
+                    :paths (mapv #(-> ^FileStatus % .getPath str) statuses),
+                    :lengths lengths,
+                    ::mr/length (reduce + lengths),
+                    ::mr/locations (->> (map vector lengths statuses)
+                                        (apply max-key first)
+                                        (second)
+                                        (first-hosts conf))}))
+           parts)))
+
+(defn ^:private open-reader
+  "Initialized record reader over the entire file at `path` of `length` bytes,
+using the input format of a private copy of shared sub-job `job`."
+  {:tag `RecordReader}
+  [context job path length]
+  (let [split (FileSplit. (fs/path path) 0 length (into-array String []))
+        job (mr/job job), tac (mr/tac job context)
+        ^InputFormat inform (w/new-instance job (.getInputFormatClass job))]
+    (doto (.createRecordReader inform split tac)
+      (.initialize split tac))))
+
+(defn ^:private copier
+  "Function copying key or value `x` via the serializations of `conf`.  Copies
+Avro wrappers shallowly, as Clojure-model Avro data is immutable."
+  [^Configuration conf]
+  (fn [x]
+    (if (instance? AvroWrapper x)
+      (doto ^AvroWrapper (w/new-instance conf (class x))
+        (.datum (.datum ^AvroWrapper x)))
+      (ReflectionUtils/copy conf x (w/new-instance conf (class x))))))
+
+(defn ^:private unwrapped-comparator
+  "Comparator of raw keys, comparing their unwrapped values via `c`."
+  {:tag `Comparator}
+  [^Comparator c]
+  (reify Comparator
+    (compare [_ a b] (.compare c (w/unwrap a) (w/unwrap b)))))
+
+(defn ^:private comparator-for
+  "Comparator of raw keys like `k` read via input job `job`.  Uses the function
+var `cmpv` if provided to compare unwrapped keys; otherwise the sort comparator
+configured for `job` if any, the registered comparator for the class of
+`WritableComparable` keys, or `compare` of unwrapped keys for others (as e.g.
+Avro keys)."
+  {:tag `Comparator}
+  [^Job job cmpv k]
+  (cond
+    cmpv (unwrapped-comparator @cmpv)
+    (or (conf/get job "mapreduce.job.output.key.comparator.class")
+        (conf/get job "mapred.output.key.comparator.class"))
+    , (.getSortComparator job)
+    (instance? WritableComparable k) (WritableComparator/get (class k))
+    :else (unwrapped-comparator compare)))
+
+(defn ^:private partition-checker
+  "Function verifying that each join key belongs to partition `partition` of
+`nparts` as per the partitioner class `pclass`, or `nil` if no class."
+  [conf pclass partition nparts]
+  (when pclass
+    (let [^Partitioner p (w/new-instance conf pclass)]
+      (fn [k]
+        (let [actual (.getPartition p k nil (int nparts))]
+          (when-not (== partition actual)
+            (throw (ex-info "Merge-join input is not co-partitioned."
+                            {:key (w/unwrap k), :expected partition,
+                             :actual actual}))))))))
+
+(defn ^:private join-seq
+  "Lazy seq of join tuples from the key-sorted record readers `rrs`."
+  [conf outer? check-partition comparator rrs]
+  (let [rrs (vec rrs), n (count rrs)
+        active (boolean-array (map #(.nextKeyValue ^RecordReader %) rrs))
+        copy (copier conf)
+        cmp (atom nil)
+        compare-key (fn [^RecordReader rr kref]
+                      (let [^Comparator c (or @cmp (reset! cmp (comparator
+                                                                kref)))]
+                        (.compare c (.getCurrentKey rr) kref)))
+        group (fn [^long i kref]
+                (let [^RecordReader rr (rrs i)]
+                  (if-not (and (aget active i) (zero? (compare-key rr kref)))
+                    []
+                    (loop [vals (transient [])]
+                      (let [vals (conj! vals (w/unwrap
+                                              (copy (.getCurrentValue rr))))]
+                        (if-not (.nextKeyValue rr)
+                          (do (aset active i false) (persistent! vals))
+                          (let [c (compare-key rr kref)]
+                            (cond
+                              (zero? c) (recur vals)
+                              (pos? c) (persistent! vals)
+                              :else (throw (ex-info
+                                            "Merge-join input is not sorted."
+                                            {:input i}))))))))))
+        min-key (fn []
+                  (reduce (fn [kmin ^long i]
+                            (if-not (aget active i)
+                              kmin
+                              (let [rr ^RecordReader (rrs i)]
+                                (if (or (nil? kmin)
+                                        (neg? (compare-key rr kmin)))
+                                  (copy (.getCurrentKey rr))
+                                  kmin))))
+                          nil (range n)))]
+    ((fn step []
+       (lazy-seq
+        (when-let [kref (min-key)]
+          (when check-partition (check-partition kref))
+          (let [groups (mapv #(group % kref) (range n))]
+            (if (or outer? (every? seq groups))
+              (cons [(w/unwrap kref) groups] (step))
+              (step)))))))))
+
+(defn ^:private record-seqable
+  "Record seqable of the join tuples for split `split`."
+  [split context subconfs outer? pclass cmpv]
+  (let [{:keys [partition nparts paths lengths]} split
+        conf (conf/ig context)
+        jobs (map (partial sj/job conf) subconfs)
+        rrs (doall (map (partial open-reader context) jobs paths lengths))
+        check-partition (partition-checker conf pclass partition nparts)]
+    (reify RecordSeqable
+      (count [_] (int (min Integer/MAX_VALUE (reduce + lengths))))
+      (seq [_]
+        (join-seq conf outer? check-partition
+                  (partial comparator-for (first jobs) cmpv) rrs))
+      (close [_] (doseq [^Closeable rr rrs] (.close rr))))))
+
+(defn ^:private subconf
+  "Configuration diff for input configuration step `step` of `job`."
+  [^Job job step]
+  (let [subjob (doto (mr/job job) (cstep/apply! step))]
+    [(conf/diff job subjob) (fs/distcache-files subjob)]))
+
+(defn dseq
+  "Distributed sequence merge-joining the sorted, identically-partitioned
+outputs of previous jobs, each the single output directory of the input
+configuration `steps`, as per the map `options`.  Each split pairs the
+same-numbered part files of every input, then streams the join of their
+key-sorted records with no shuffle.  Produces tuples of each join key and a
+vector of the vectors of the values associated with that key in each input.
+Available options are:
+  `:outer?` -- Produce keys missing from some inputs (default false);
+  `:partitioner` -- Partitioner class to verify each key against (default none);
+  `:comparator` -- Function var comparing unwrapped keys (default as below).
+Absent `:comparator`, keys are compared via the sort comparator configured by
+the first input step if any, otherwise via the registered comparator for
+`WritableComparable` keys, and otherwise via `compare` of unwrapped keys, as
+for Avro keys of strings, numbers, or tuples thereof.  Fails on job submission
+if the inputs have differing sets of part files or lack any partition (as with
+lazy output of empty partitions), and during the job upon encountering unsorted
+input or keys which the `:partitioner` assigns to a different partition."
+  [options & steps]
+  (let [{:keys [outer? partitioner comparator]} options]
+    (dseq/dseq
+     (fn [^Job job]
+       (let [subconfs (map (partial subconf job) steps)]
+         (when (< (count subconfs) 2)
+           (throw (ex-info "Merge-join requires at least two inputs."
+                           {:inputs (count subconfs)})))
+         (doseq [[_ dcm] subconfs] (fs/distcache! job dcm))
+         (let [diffs (mapv first subconfs)]
+           (doto job
+             (.setInputFormatClass
+              (mr/input-format! job #'get-splits [diffs] #'record-seqable
+                                [diffs outer? partitioner comparator]))
+             (dseq/set-default-shape! :keys))))))))
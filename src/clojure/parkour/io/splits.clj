@@ -0,0 +1,146 @@
+(ns parkour.io.splits
+  "Cached, parallel computation of job input splits."
+  (:require [clojure.tools.logging :as log]
+            [parkour (conf :as conf) (mapreduce :as mr) (wrapper :as w)]
+            [parkour.util.map-combine :refer [map-combine]])
+  (:import [java.util ArrayList Collection LinkedHashMap List UUID]
+           [java.util.concurrent Executors ThreadPoolExecutor TimeUnit]
+           [org.apache.hadoop.fs Path]
+           [org.apache.hadoop.mapreduce InputFormat JobContext]
+           [org.apache.hadoop.mapreduce.lib.input
+            , CombineFileInputFormat FileInputFormat]))
+
+(def ^:private ^:const token-key
+  "Configuration key for the per-job split-cache token."
+  "parkour.splits.cache.id")
+
+(def ^:private ^:const threads-key
+  "Configuration key for the maximum number of split-computation threads."
+  "parkour.splits.threads")
+
+(def ^:private ^:const threads-default
+  "Default maximum number of split-computation threads."
+  8)
+
+(def ^:private ^:const paths-per-thread
+  "Minimum number of input paths assigned to each split-computation thread."
+  16)
+
+(def ^:private ^:const cache-size
+  "Maximum number of cached split lists."
+  64)
+
+(def ^:private ^LinkedHashMap cache
+  "LRU cache of computed split lists, keyed by job token, input format class,
+and input-related job configuration."
+  (proxy [LinkedHashMap] [16 0.75 true]
+    (removeEldestEntry [_]
+      (> (.size ^LinkedHashMap this) cache-size))))
+
+(def ^:private ^ThreadPoolExecutor pool
+  "Shared thread pool for split computation, grown as needed to the largest
+configured thread count.  Idle threads exit after 30 seconds."
+  (let [^ThreadPoolExecutor pool (Executors/newFixedThreadPool threads-default)]
+    (doto pool
+      (.setKeepAliveTime 30 TimeUnit/SECONDS)
+      (.allowCoreThreadTimeOut true))))
+
+(defn ^:private split-pool
+  "Shared split-computation pool, with at least `n` threads."
+  {:tag `ThreadPoolExecutor}
+  [n]
+  (locking pool
+    (when (< (.getMaximumPoolSize pool) (long n))
+      (.setMaximumPoolSize pool (int n))
+      (.setCorePoolSize pool (int n))))
+  pool)
+
+(def ^:private input-key?
+  "Pattern matching configuration keys which may affect input splits."
+  #"input|split|^fs\.default|^parkour\.(?:mux|sample|mem)\.")
+
+(defn cache-splits
+  "Configuration step enabling caching of the input splits computed for `job`
+via `input-splits`.  Later `input-splits` calls for `job` or copies of its
+configuration -- as by Parkour input formats such as multiplexed inputs at job
+submission -- reuse the cached splits.  Hadoop job submission calls other input
+formats directly, and so still computes their splits anew."
+  [job]
+  (when-not (conf/get job token-key nil)
+    (conf/assoc! job token-key (str (UUID/randomUUID)))))
+
+(defn ^:private cache-key
+  "Split-cache key for input format `ifi` in `context`, or `nil` if split
+caching is not enabled for `context`."
+  [context ^InputFormat ifi]
+  (when-let [token (conf/get context token-key nil)]
+    [token
+     (-> ifi class .getName)
+     (->> (conf/ig context)
+          (filter #(re-find input-key? (key %)))
+          (remove #(= token-key (key %)))
+          (into (sorted-map)))]))
+
+(defn ^:private file-input?
+  "True iff `ifi` lists splits independently per input path."
+  [ifi]
+  (and (instance? FileInputFormat ifi)
+       (not (instance? CombineFileInputFormat ifi))))
+
+(defn ^:private path-groups
+  "Partition the input paths of `context` for split computation across up to
+the configured number of threads."
+  [^JobContext context]
+  (let [paths (FileInputFormat/getInputPaths context)
+        npaths (alength paths)
+        nthreads (min (conf/get-int context threads-key threads-default)
+                      (quot npaths paths-per-thread))]
+    (if (< nthreads 2)
+      [paths]
+      (let [n (-> npaths (+ nthreads) dec (quot nthreads))]
+        (->> paths (partition-all n) (map #(into-array Path %)) vec)))))
+
+(defn ^:private group-splits
+  "Splits of `ifi` in `context` for only the input paths `paths`."
+  [context ^InputFormat ifi ^"[Lorg.apache.hadoop.fs.Path;" paths]
+  (let [job (doto (mr/job context) (FileInputFormat/setInputPaths paths))]
+    (.getSplits ifi job)))
+
+(defn ^:private compute-splits
+  "Compute the splits of `ifi` in `context`.  Spread file listing and status
+lookups for `FileInputFormat`s with many input paths across multiple threads,
+preserving split order."
+  [^JobContext context ^InputFormat ifi]
+  (let [groups (if (file-input? ifi) (path-groups context) [])]
+    (if (< (count groups) 2)
+      (vec (.getSplits ifi context))
+      (let [ngroups (count groups)]
+        (log/infof "Computing input splits across %d threads" ngroups)
+        (->> groups
+             (map-indexed vector)
+             (map-combine (split-pool ngroups)
+                          (fn [[i paths]] {i (group-splits context ifi paths)})
+                          (fn ([] (sorted-map)) ([m1 m2] (merge m1 m2))))
+             (vals)
+             (apply concat)
+             (vec))))))
+
+(defn input-splits
+  "List of the input splits of `context` for input format `ifi` -- either an
+input format instance or class, defaulting to the input format class of
+`context`.  When enabled via `cache-splits`, caches splits per job, keyed on the
+input-related configuration of `context`, such that repeated calls for the same
+job share a single split computation."
+  {:tag `List}
+  ([^JobContext context] (input-splits context (.getInputFormatClass context)))
+  ([^JobContext context ifi]
+     (let [^InputFormat ifi (if (instance? InputFormat ifi)
+                              ifi
+                              (w/new-instance context ifi))
+           k (cache-key context ifi)
+           splits (when k (locking cache (.get cache k)))
+           splits (or splits
+                      (let [splits (compute-splits context ifi)]
+                        (when k (locking cache (.put cache k splits)))
+                        splits))]
+       (ArrayList. ^Collection splits))))
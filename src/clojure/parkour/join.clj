@@ -0,0 +1,400 @@
+(ns parkour.join
+  "Join helpers: map-side broadcast joins against compact memory-mapped hash
+tables, and Bloom-filter pre-filtering for reduce-side joins."
+  (:refer-clojure :exclude [get contains?])
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.core.reducers :as r]
+            [clojure.tools.logging :as log]
+            [abracad.avro.edn :as aedn]
+            [parkour (conf :as conf) (fs :as fs) (mapreduce :as mr)
+             ,       (graph :as pg) (reducers :as pr)]
+            [parkour.mapreduce (sink :as snk)]
+            [parkour.io (dseq :as dseq) (dval :as dval) (avro :as mra)]
+            [parkour.util :refer [returning mev]])
+  (:import [java.io DataInputStream DataOutputStream File RandomAccessFile]
+           [java.nio ByteBuffer]
+           [java.nio.channels FileChannel$MapMode]
+           [java.util Arrays]
+           [org.apache.hadoop.fs Path]
+           [org.apache.hadoop.mapreduce TaskInputOutputContext]
+           [org.apache.hadoop.util.bloom BloomFilter Key]
+           [org.apache.hadoop.util.hash Hash]
+           [clojure.lang MapEntry Murmur3]))
+
+(def ^:private ^:const magic
+  "Table file magic number, \"PKHT\"."
+  0x504b4854)
+
+(def ^:private ^:const header-size
+  "Table file header size in bytes: magic, slot count, and entry count."
+  12)
+
+(def ^:dynamic *max-bytes*
+  "Default maximum total input size in bytes of the small side of a join for
+which `join` will perform a map-side broadcast join."
+  67108864)
+
+(def ^:private ^:const cache-size
+  "Number of slots in each table's direct-mapped decoded value cache."
+  1024)
+
+(defn ^:private tagged-bytes
+  "Byte array of `tag` followed by the bytes of `b`."
+  ^bytes [tag ^bytes b]
+  (let [out (byte-array (inc (alength b)))]
+    (aset out 0 (byte tag))
+    (System/arraycopy b 0 out 1 (alength b))
+    out))
+
+(defn ^:private ->bytes
+  "Stable binary encoding of `x`: tagged UTF-8 for strings, tagged big-endian
+longs for fixed-width integers, and tagged UTF-8 EDN for other values."
+  ^bytes [x]
+  (cond
+    (instance? String x) (tagged-bytes 1 (.getBytes ^String x "UTF-8"))
+    (or (instance? Long x) (instance? Integer x)
+        (instance? Short x) (instance? Byte x))
+    , (-> (ByteBuffer/allocate 9) (.put (byte 2)) (.putLong (long x)) .array)
+    :else (tagged-bytes 0 (.getBytes (pr-str x) "UTF-8"))))
+
+(defn ^:private bytes->
+  "Decode value from `n` bytes of `buf` starting at `off`, as encoded by
+`->bytes`."
+  [^ByteBuffer buf ^long off ^long n]
+  (case (long (.get buf (int off)))
+    2 (.getLong buf (int (inc off)))
+    (let [b (byte-array (dec n))]
+      (doto (.duplicate buf) (.position (int (inc off))) (.get b))
+      (if (== 1 (.get buf (int off)))
+        (String. b "UTF-8")
+        (edn/read-string {:readers *data-readers*} (String. b "UTF-8"))))))
+
+(defn ^:private hash-bytes
+  "Hash of byte array `b`."
+  ^long [^bytes b] (Murmur3/hashInt (Arrays/hashCode b)))
+
+(defn ^:private slot-index
+  "Initial table slot for hash `h` in table of `nslots` slots."
+  ^long [^long h ^long nslots] (mod (bit-and h 0x7fffffff) nslots))
+
+(defn ^:private write-entries
+  "Write the hash, key bytes, and value bytes of each key/value tuple of `coll`
+to `out`.  Returns a tuple of the entry count, entry hashes, entry offsets
+relative to the first entry, and total bytes written."
+  [^DataOutputStream out coll]
+  (reduce (fn [[n ^ints hs ^longs offs size] [k v]]
+            (let [n (long n), size (long size)
+                  kb (->bytes k), vb (->bytes v), h (hash-bytes kb)
+                  ^ints hs (if (< n (alength hs))
+                             hs
+                             (Arrays/copyOf hs (int (* 2 n))))
+                  ^longs offs (if (< n (alength offs))
+                                offs
+                                (Arrays/copyOf offs (int (* 2 n))))]
+              (aset hs n (int h))
+              (aset offs n size)
+              (doto out
+                (.writeInt (int h))
+                (.writeInt (alength kb)) (.write kb)
+                (.writeInt (alength vb)) (.write vb))
+              [(inc n) hs offs (+ size 12 (alength kb) (alength vb))]))
+          [0 (int-array 16) (long-array 16) 0]
+          coll))
+
+(defn write-table
+  "Write the key/value tuples of `coll` to the local file `f` as a
+memory-mappable open-addressing hash table.  Keys must have canonical printed
+representations, as for e.g. strings, numbers, keywords, and vectors thereof.
+Duplicate keys retain all associated values.  Streams entries through a
+temporary file, holding only per-entry hashes and offsets in memory.  Throws if
+the table would exceed the 2GiB memory-mappable maximum."
+  [f coll]
+  (let [data (doto (File/createTempFile "parkour-join-" ".data") .deleteOnExit)]
+    (try
+      (let [[n ^ints hs ^longs offs size]
+            , (with-open [out (DataOutputStream. (io/output-stream data))]
+                (write-entries out coll))
+            n (long n), nslots (max 1 (* 2 n))
+            base (+ header-size (* 4 nslots)), total (+ base (long size))
+            _ (when (< Integer/MAX_VALUE total)
+                (throw (ex-info "Join table too large to memory-map."
+                                {:entries n, :bytes total})))
+            slots (int-array nslots)]
+        (dotimes [e n]
+          (loop [i (slot-index (aget hs e) nslots)]
+            (if-not (zero? (aget slots i))
+              (recur (mod (inc i) nslots))
+              (aset slots i (int (+ base (aget offs e)))))))
+        (with-open [out (DataOutputStream. (io/output-stream (io/file f)))]
+          (doto out (.writeInt magic) (.writeInt nslots) (.writeInt n))
+          (dotimes [i nslots] (.writeInt out (aget slots i)))
+          (io/copy data out))
+        f)
+      (finally
+        (.delete data)))))
+
+(deftype Table [^ByteBuffer buf ^long nslots ^objects cache])
+
+(defn ^:private local-file
+  "Local file for `path`, copying to a local temporary file when `path` is not
+on the local filesystem."
+  ^File [path]
+  (let [path (fs/path path)]
+    (if (= "file" (-> path fs/uri .getScheme))
+      (io/file (fs/uri path))
+      (doto (File/createTempFile "parkour-join-" ".table")
+        (.deleteOnExit)
+        (as-> f (io/copy path f))))))
+
+(defn open-table
+  "Memory-map the hash table at `path`, as written by `write-table`."
+  [path]
+  (with-open [raf (RandomAccessFile. (local-file path) "r")]
+    (let [ch (.getChannel raf)
+          buf (.map ch FileChannel$MapMode/READ_ONLY 0 (.size ch))]
+      (when-not (= magic (.getInt buf 0))
+        (throw (ex-info (str path ": not a join hash table") {:path path})))
+      (Table. buf (.getInt buf 4) (object-array cache-size)))))
+
+(defn ^:private key-match?
+  "True iff the entry key at `off` in `buf` has hash `h` and bytes `kb`."
+  [^ByteBuffer buf ^long off ^long h ^bytes kb]
+  (let [n (alength kb)]
+    (and (== h (.getInt buf (int off)))
+         (== n (.getInt buf (int (+ off 4))))
+         (let [koff (+ off 8)]
+           (loop [i 0]
+             (cond (>= i n) true
+                   (not= (aget kb i) (.get buf (int (+ koff i)))) false
+                   :else (recur (inc i))))))))
+
+(defn ^:private probe
+  "Reduce `f` over the value offsets of all entries in `table` for `k`, with
+initial value `init`."
+  [^Table table k f init]
+  (let [buf (.-buf table), nslots (.-nslots table)
+        kb (->bytes k), h (hash-bytes kb)]
+    (loop [i (slot-index h nslots), acc init]
+      (let [off (long (.getInt buf (int (+ header-size (* 4 i)))))]
+        (cond
+          (zero? off) acc
+          (not (key-match? buf off h kb)) (recur (mod (inc i) nslots) acc)
+          :else (let [acc (f acc (+ off 8 (alength kb)))]
+                  (if (reduced? acc)
+                    @acc
+                    (recur (mod (inc i) nslots) acc))))))))
+
+(defn ^:private value-at
+  "Decoded value at offset `off` of `table`, via its direct-mapped cache of
+recently-decoded values."
+  [^Table table ^long off]
+  (let [^objects cache (.-cache table)
+        i (bit-and (bit-xor off (unsigned-bit-shift-right off 16))
+                   (dec cache-size))
+        ^MapEntry e (aget cache i)]
+    (if (and e (== off (long (.key e))))
+      (.val e)
+      (let [buf (.-buf table)
+            v (bytes-> buf (+ off 4) (.getInt ^ByteBuffer buf (int off)))]
+        (aset cache i (MapEntry. off v))
+        v))))
+
+(defn get
+  "Vector of all values associated with `k` in `table`."
+  [^Table table k]
+  (probe table k (fn [acc ^long off] (conj acc (value-at table off))) []))
+
+(defn contains?
+  "True iff `table` contains at least one entry for `k`, without deserializing
+any associated values."
+  [table k] (probe table k (fn [_ _] (reduced true)) false))
+
+(defn table-dval
+  "Build a hash table from the key/value tuples of the local collection or
+dseq `coll`, and return a dval of the memory-mapped table, shipped to tasks via
+the distributed cache."
+  [coll]
+  (let [f (doto (File/createTempFile "parkour-join-" ".table") .deleteOnExit)]
+    (write-table f coll)
+    (log/infof "join table: %d bytes" (.length f))
+    (dval/copy-dval #'open-table [f])))
+
+(defn ^:private joiner
+  "Function from a key & value to the sequence of joined tuples of kind `kind`
+for the values of that key in `table`."
+  [kind table]
+  (case kind
+    :inner (fn [k v] (map #(mev k [v %]) (get table k)))
+    :left-outer (fn [k v]
+                  (if-let [vs (seq (get table k))]
+                    (map #(mev k [v %]) vs)
+                    [(mev k [v nil])]))
+    :semi (fn [k v] (if (contains? table k) [(mev k v)]))
+    #_else (throw (ex-info (str "Unknown join kind `" kind "`")
+                           {:kind kind}))))
+
+(defn join-tuples
+  "Join the key/value tuples of `coll` against hash table `table`, producing a
+reducible collection of joined tuples of kind `kind`.  For `:inner` and
+`:left-outer` joins, tuples are `[k [v v']]`, with `v'` `nil` for unmatched
+left-outer tuples; for `:semi` joins, tuples are the matching `[k v]`."
+  [kind table coll]
+  (let [f (joiner kind table)]
+    (r/mapcat (fn [[k v]] (f k v)) coll)))
+
+(defn broadcast-m
+  "Map task function for broadcast joins of input against the hash table dval
+`table`, as per `join-tuples`."
+  {::mr/source-as :keyvals}
+  [kind table coll] (join-tuples kind @table coll))
+
+(defn tag-m
+  "Map task function tagging the value of each input tuple with `tag`."
+  {::mr/source-as :keyvals}
+  [tag coll] (r/map (fn [[k v]] [k [tag v]]) coll))
+
+(defn shuffle-r
+  "Reduce task function for shuffle joins of tagged key/value groups."
+  {::mr/source-as :keyvalgroups}
+  [kind coll]
+  (r/mapcat (fn [[k tvs]]
+              (let [[ls rs] (reduce (fn [[ls rs] [tag v]]
+                                      (if (zero? tag)
+                                        [(conj ls v) rs]
+                                        [ls (conj rs v)]))
+                                    [[] []] tvs)]
+                (case kind
+                  :inner (for [l ls, r rs] [k [l r]])
+                  :left-outer (if (seq rs)
+                                (for [l ls, r rs] [k [l r]])
+                                (for [l ls] [k [l nil]]))
+                  :semi (if (seq rs) (for [l ls] [k l])))))
+            coll))
+
+(defn ^:private input-bytes
+  "Total size in bytes of the input paths of `dseq`, or `nil` if `dseq` has no
+input paths and thus an unknown size."
+  [conf dseq]
+  (when-let [paths (seq (dseq/input-paths dseq))]
+    (->> paths
+         (mapcat (fn [p] (fs/path-glob (fs/path-fs conf p) p)))
+         (map (fn [^Path p]
+                (-> (fs/path-fs conf p) (.getContentSummary p) .getLength)))
+         (reduce + 0))))
+
+(defn join
+  "Return a job node joining the key/value tuples of dseq `large` against those
+of dseq `small` as per `join-tuples`, with `kind` one of `:inner`,
+`:left-outer`, or `:semi`.  Performs a map-side broadcast join when the input
+size of `small` is at most `max-bytes` (default `*max-bytes*`), and otherwise
+falls back to a reduce-side shuffle join.  Dseqs without input paths -- such as
+in-memory, dval, and multiplex dseqs -- are of unknown size and always joined
+via shuffle unless `max-bytes` is `:always`.  The result still requires an
+output via `graph/output`."
+  ([kind large small] (join (conf/ig) kind large small))
+  ([conf kind large small] (join conf kind large small *max-bytes*))
+  ([conf kind large small max-bytes]
+     (when-not (#{:inner :left-outer :semi} kind)
+       (throw (ex-info (str "Unknown join kind `" kind "`") {:kind kind})))
+     (let [nbytes (when-not (= :always max-bytes) (input-bytes conf small))]
+       (if (or (= :always max-bytes) (and nbytes (<= nbytes max-bytes)))
+         (-> (pg/input large)
+             (pg/map #'broadcast-m kind (table-dval small)))
+         (let [schema (aedn/new-schema)]
+           (log/infof "join: small side is %s bytes; using shuffle join"
+                      (or nbytes "unknown"))
+           (-> [(pg/map (pg/input large) #'tag-m 0)
+                (pg/map (pg/input small) #'tag-m 1)]
+               (pg/partition (mra/shuffle [schema schema]))
+               (pg/reduce #'shuffle-r kind)))))))
+
+(def ^:private ^:const counter-group
+  "Bloom Filter Join")
+
+(defn ^:private ->key
+  "Bloom filter key for `x`."
+  {:tag `Key}
+  [x] (Key. (->bytes x)))
+
+(defn ^:private bloom-filter
+  "New empty Bloom filter sized for `n` keys at false-positive rate `fpp`.
+Throws if the required bit vector exceeds the maximum Hadoop Bloom filter
+size."
+  {:tag `BloomFilter}
+  [n fpp]
+  (let [n (max 1 (long n)), ln2 (Math/log 2)
+        m (-> (Math/log fpp) (* (- n)) (/ (* ln2 ln2)) Math/ceil long)
+        k (-> (/ m n) (* ln2) Math/round (max 1))]
+    (when (> m Integer/MAX_VALUE)
+      (throw (ex-info "Bloom filter too large for key count and fpp."
+                      {:keys n, :fpp fpp, :bits m})))
+    (BloomFilter. (int m) (int k) Hash/MURMUR_HASH)))
+
+(defn ^:private bloom-spit
+  "Write Bloom filter `bf` to `path`."
+  [path ^BloomFilter bf]
+  (with-open [out (DataOutputStream. (io/output-stream path))]
+    (.write bf out)))
+
+(defn ^:private bloom-slurp
+  "Read Bloom filter from `path`."
+  [path]
+  (with-open [in (DataInputStream. (io/input-stream path))]
+    (doto (BloomFilter.) (.readFields in))))
+
+(defn bloom-dval
+  "Build a Bloom filter over the join keys of the local collection or dseq
+`coll`, as produced by applying `keyf` to each tuple, and return a dval of the
+filter.  Builds the filter in parallel via `r/fold`, and thus across splits for
+dseqs.  Available `options` are:
+  `:fpp` -- Target false-positive rate (default 0.01);
+  `:expected` -- Expected number of keys (default counted from `coll`).
+Without `:expected`, reads `coll` once, collecting the serialized keys in memory
+to count them before building the filter."
+  ([keyf coll] (bloom-dval {} keyf coll))
+  ([options keyf coll]
+     (let [{:keys [fpp expected]} (merge {:fpp 0.01} options)
+           build (fn [n ks]
+                   (r/fold (fn
+                             ([] (bloom-filter n fpp))
+                             ([^BloomFilter bf1 bf2] (doto bf1 (.or bf2))))
+                           (fn [^BloomFilter bf k] (doto bf (.add k)))
+                           ks))
+           bf (if expected
+                (build expected (r/map (comp ->key keyf) coll))
+                (let [ks (r/foldcat (r/map (comp ->key keyf) coll))]
+                  (build (count ks) ks)))]
+       (dval/transient-dval bloom-spit #'bloom-slurp bf))))
+
+(defn bloom-m
+  "Map task function adapter running the map task function var `v` with
+`args`, then dropping each output tuple whose join key -- the result of
+applying `keyf` to the tuple -- is not in the Bloom filter dval `bloom`.
+Reports passed and filtered tuple counts as counters."
+  {::mr/adapter mr/contextfn}
+  [conf bloom keyf v & args]
+  (let [m (meta v)
+        shape-in (get m ::mr/source-as :default)
+        shape-out (get m ::mr/sink-as :default)]
+    (fn [^TaskInputOutputContext context input]
+      (let [^BloomFilter bf @bloom
+            passed (.getCounter context counter-group "passed tuples")
+            dropped (.getCounter context counter-group "filtered tuples")
+            output (apply v (conj (vec args) (mr/source-as shape-in input)))
+            kind (-> output meta (get ::snk/sink-as shape-out))]
+        (->> output
+             (r/filter (fn [x]
+                         (if (.membershipTest bf (->key (keyf x)))
+                           (returning true (.increment passed 1))
+                           (returning false (.increment dropped 1)))))
+             (mr/sink-as kind))))))
+
+(defn prefilter
+  "Add map task to job node `node` as implemented by the map task function var
+`v` and optional `args`, but dropping output tuples whose join key is not in the
+Bloom filter dval `bloom` as per `bloom-m`.  The join key of each output tuple
+is the result of applying `keyf`, defaulting to `pr/nth0` when `nil`.  Use on
+the large side of a reduce-side join prior to `graph/partition`."
+  [node bloom keyf v & args]
+  (apply pg/map node #'bloom-m bloom (or keyf #'pr/nth0) v args))
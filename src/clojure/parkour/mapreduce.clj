@@ -80,7 +80,19 @@ from the tuples in `context`.  Deprecated."
 source-shaping function of one argument or a keyword indicating a built-in
 source-shaping function.  Supported keywords are: `:keys`, `:vals`, `:keyvals`,
 `:keygroups`, `:valgroups`, :keyvalgroups`, `:keykeyvalgroups`,
-`:keykeygroups`, and `:keysgroups`."
+`:keykeygroups`, and `:keysgroups`.  The `:valgroups-buffered` and
+`:keyvalgroups-buffered` shapes yield value groups which may be reduced multiple
+times until the source advances to the next group, spilling to task-local disk
+beyond the `parkour.spill.buffer.bytes` configured in-memory limit.
+The `:key-chunks`, `:val-chunks`, and `:keyval-chunks` shapes yield `ArrayChunk`
+batches of `parkour.source.chunk.size` tuples, while the `:keys-chunked`,
+`:vals-chunked`, and `:keyvals-chunked` shapes yield individual tuples, but
+`seq` as chunked seqs read in such batches; chunking shapes require unwrapped
+tuples.  The `:keys-parallel`, `:vals-parallel`, and `:keyvals-parallel` shapes
+`r/fold` in parallel within the task, reading tuples on the task thread but
+reducing chunks of them on a pool of `parkour.source.fold.threads` threads; a
+positive value for that parameter enables the same for map-task shapes of
+unwrapped keys, values, or key/value tuples."
   [kind source] (src/source-as kind source))
 
 (defn wrap-sink
@@ -92,6 +104,18 @@ are not already of the correct type then sinks them to `sink`."
   ([sink] (snk/wrap-sink sink))
   ([ckey cval sink] (snk/wrap-sink ckey cval sink)))
 
+(defn async-sink
+  "Return new tuple sink which writes tuples to `sink` asynchronously, from a
+writer thread shared by the asynchronous sinks of the current task and running
+with the dynamic bindings of the thread creating it.  Emitted tuples are
+buffered in batches of `parkour.sink.async.batch` tuples, with up to
+`parkour.sink.async.depth` filled batches queued for writing before emitting
+blocks.  Hadoop `Writable` keys and values are copied when emitted; other keys
+and values must not be mutated after emitting.  Must `.close` to flush, which
+also closes `sink` and re-throws any exception raised while writing.  The
+`sink` must not be written to directly while the returned sink remains open."
+  [sink] (snk/async-sink sink))
+
 (defn sink-as
   "Annotate `coll` as containing values to sink as `kind`.  The `kind` may
 either be a sinking function of two arguments (a sink and a collection) or a
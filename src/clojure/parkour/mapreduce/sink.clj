@@ -1,11 +1,16 @@
 (ns parkour.mapreduce.sink
   (:refer-clojure :exclude [key val keys vals reduce])
   (:require [clojure.core :as cc]
-            [parkour (conf :as conf) (cser :as cser) (wrapper :as w)]
-            [parkour.util :refer [returning]])
+            [parkour (conf :as conf) (cser :as cser) (wrapper :as w)
+             ,       (reducers :as pr)]
+            [parkour.util :refer [ignore-errors returning]]
+            [pjstadig.scopes :as s])
   (:import [java.io Closeable]
-           [clojure.lang IFn IObj]
+           [java.util ArrayList]
+           [java.util.concurrent ArrayBlockingQueue TimeUnit]
+           [clojure.lang IFn IObj Var]
            [org.apache.hadoop.conf Configurable]
+           [org.apache.hadoop.io Writable WritableUtils]
            [org.apache.hadoop.mapreduce MapContext ReduceContext]))
 
 (defprotocol TupleSink
@@ -42,11 +47,12 @@
   "Value class expected by `sink`."
   [sink] (-val-class sink))
 
+;; Task context writes lock the context, serializing writes from parallel folds
 (extend-protocol TupleSink
   MapContext
   (-key-class [sink] (.getMapOutputKeyClass sink))
   (-val-class [sink] (.getMapOutputValueClass sink))
-  (-emit-keyval [sink key val] (.write sink key val))
+  (-emit-keyval [sink key val] (locking sink (.write sink key val)))
   (-close [_])
 
   ReduceContext
@@ -59,7 +65,7 @@
       "combine" (.getMapOutputValueClass sink)
       "reduce" (.getOutputValueClass sink)))
   (-emit-keyval [sink key val]
-    (.write sink key val))
+    (locking sink (.write sink key val)))
   (-close [_]))
 
 (defn ^:private wrapper-class
@@ -104,6 +110,207 @@ the original class."
              1 (let [[keyval] args] (emit-keyval sink keyval))
              2 (let [[key val] args] (emit-keyval sink key val))))))))
 
+(def ^:private ^:const async-batch-default
+  "Default number of tuples per asynchronous sink batch."
+  1024)
+
+(def ^:private ^:const async-depth-default
+  "Default number of filled asynchronous sink batches queued for writing."
+  2)
+
+(defn async?
+  "True iff `conf` enables asynchronous sinks via the `parkour.sink.async`
+parameter."
+  [conf]
+  (if-let [conf (conf/ig conf)]
+    (conf/get-boolean conf "parkour.sink.async" false)
+    false))
+
+(defn ^:private copy-fn
+  "Function copying tuple members which are mutable Hadoop `Writable`s."
+  [conf]
+  (let [conf (or conf (conf/ig))]
+    (fn [x]
+      (if (instance? Writable x)
+        (WritableUtils/clone ^Writable x conf)
+        x))))
+
+(def ^:private writers
+  "Atom of map from task resource scope to the shared asynchronous sink writer
+for that scope.  Entries are removed on scope exit."
+  (atom {}))
+
+(defn ^:private new-writer
+  "New asynchronous sink writer, running queued functions on a writer thread
+with the dynamic bindings of the calling thread, and queueing up to `depth`
+functions."
+  [key depth]
+  (let [queue (ArrayBlockingQueue. (int depth)), done (Object.)
+        frame (Var/cloneThreadBindingFrame)
+        run (fn []
+              (Var/resetThreadBindingFrame frame)
+              (try
+                (loop []
+                  (let [f (.take queue)]
+                    (when-not (identical? done f)
+                      (f)
+                      (recur))))
+                (catch InterruptedException _ nil)))
+        thread (doto (Thread. ^Runnable run "parkour-async-sink")
+                 (.setDaemon true)
+                 (.start))]
+    {:key key, :queue queue, :thread thread, :done done, :refs (atom 0)}))
+
+(defn ^:private stop-writer
+  "Remove `writer` from the shared writers and stop its thread once it has run
+all queued functions, or immediately if its queue is full."
+  [{:keys [key ^ArrayBlockingQueue queue ^Thread thread done]}]
+  (locking writers
+    (when (identical? thread (:thread (get @writers key)))
+      (swap! writers dissoc key)))
+  (when-not (.offer queue done)
+    (.interrupt thread)))
+
+(defn ^:private acquire-writer
+  "Asynchronous sink writer shared by all asynchronous sinks of the current task
+resource scope, or a new unshared writer if no scope is active.  Queues up to
+`depth` functions if newly created.  Must be released via `release-writer`."
+  [depth]
+  (let [key (when (bound? #'s/*resources*) s/*resources*)]
+    (locking writers
+      (let [writer (or (and key (get @writers key))
+                       (let [writer (new-writer key depth)]
+                         (when key
+                           (swap! writers assoc key writer)
+                           (s/scoped! writer stop-writer))
+                         writer))]
+        (swap! (:refs writer) inc)
+        writer))))
+
+(defn ^:private put!
+  "Queue function `f` to run on the thread of `writer`, throwing if the writer
+thread has died."
+  [{:keys [^ArrayBlockingQueue queue ^Thread thread]} f]
+  (loop []
+    (when-not (.offer queue f 100 TimeUnit/MILLISECONDS)
+      (if (.isAlive thread)
+        (recur)
+        (throw (ex-info "Asynchronous sink writer thread died." {}))))))
+
+(defn ^:private await!
+  "Wait for `writer` to run all previously-queued functions, throwing if the
+writer thread dies first."
+  [writer]
+  (let [p (promise), ^Thread thread (:thread writer)]
+    (put! writer #(deliver p true))
+    (loop []
+      (when (identical? ::timeout (deref p 100 ::timeout))
+        (if (.isAlive thread)
+          (recur)
+          (throw (ex-info "Asynchronous sink writer thread died." {})))))))
+
+(defn ^:private release-writer
+  "Release `writer`, stopping its thread once released by all sinks.  Writers
+of task resource scopes are also stopped on scope exit, even if never released."
+  [{:keys [key refs done], :as writer}]
+  (when (locking writers
+          (when (zero? (swap! refs dec))
+            (when key (swap! writers dissoc key))
+            true))
+    (put! writer done)))
+
+(defn ^:private batch-fn
+  "Function emitting the tuples of `batch` to `sink`.  Records the first write
+exception in the atom `error`, discarding subsequent batches."
+  [sink ^ArrayList batch error]
+  (fn []
+    (when (nil? @error)
+      (try
+        (let [n (.size batch)]
+          (loop [i 0]
+            (when (< i n)
+              (-emit-keyval sink (.get batch i) (.get batch (inc i)))
+              (recur (+ i 2)))))
+        (catch Throwable t
+          (reset! error t))))))
+
+(defn async-sink
+  "Backing implementation for `mr/async-sink`."
+  [sink]
+  (let [conf (conf/ig sink), unwrapped (w/unwrap sink)
+        nbatch (if-not conf
+                 async-batch-default
+                 (conf/get-int conf "parkour.sink.async.batch"
+                               async-batch-default))
+        depth (if-not conf
+                async-depth-default
+                (conf/get-int conf "parkour.sink.async.depth"
+                              async-depth-default))
+        error (atom nil), closed? (atom false)
+        new-batch #(ArrayList. (int (* 2 nbatch)))
+        batch (atom (new-batch))
+        copy (copy-fn conf)
+        writer (acquire-writer depth)
+        check! #(when-let [t @error]
+                  (throw (ex-info "Asynchronous sink write failed." {} t)))
+        flush! #(let [^ArrayList b @batch]
+                  (when-not (.isEmpty b)
+                    (put! writer (batch-fn sink b error))
+                    (reset! batch (new-batch))))
+        close! #(when (compare-and-set! closed? false true)
+                  (let [t (try (flush!) (await! writer) nil
+                               (catch Throwable t t))]
+                    (ignore-errors (release-writer writer))
+                    (if (and (nil? t) (nil? @error))
+                      (-close sink)
+                      (do (ignore-errors (-close sink))
+                          (when t (throw t))
+                          (check!)))))]
+    (reify
+      Configurable
+      (getConf [_] conf)
+
+      w/Wrapper
+      (unwrap [_] unwrapped)
+
+      TupleSink
+      (-key-class [_] (key-class sink))
+      (-val-class [_] (val-class sink))
+      (-close [_] (close!))
+      (-emit-keyval [_ key val]
+        (check!)
+        (let [^ArrayList b @batch]
+          (.add b (copy key))
+          (.add b (copy val))
+          (when (<= (* 2 nbatch) (.size b))
+            (flush!))))
+
+      Closeable
+      (close [_] (close!))
+
+      IFn
+      (invoke [sink keyval] (emit-keyval sink keyval))
+      (invoke [sink key val] (emit-keyval sink key val))
+      (applyTo [sink args]
+        (case (count args)
+          1 (let [[keyval] args] (emit-keyval sink keyval))
+          2 (let [[key val] args] (emit-keyval sink key val)))))))
+
+(defn maybe-async
+  "Asynchronous version of `sink` as per `async-sink` if `sink` is configured
+for asynchronous writing as per `async?`; otherwise `sink`."
+  [sink] (cond-> sink (async? sink) (async-sink)))
+
+(defn ^:private sink-wrapped
+  "Apply function `f` to the wrapped `sink`, asynchronously writing and then
+closing the wrapper if so configured."
+  [sink f]
+  (let [wsink (wrap-sink sink)]
+    (if-not (async? sink)
+      (f wsink)
+      (with-open [^Closeable asink (async-sink wsink)]
+        (f asink)))))
+
 (defn ^:private output-sink?
   [conf]
   (or (= "reduce" (conf/get conf "parkour.step" "reduce"))
@@ -127,16 +334,26 @@ the original class."
 
 (defn ^:private sink-emit-wrapped
   "Sinking function for wrapping a sink then emitting via function `emit`."
-  [emit] (fn [sink coll] (cc/reduce emit (wrap-sink sink) coll)))
+  [emit] (fn [sink coll] (sink-wrapped sink #(cc/reduce emit % coll))))
+
+(defn ^:private sink-keyvals-raw
+  "Sinking function for emitting key/value tuples, passing each key and value
+directly to the sink as per `pr/kv-reduce`."
+  [sink coll] (pr/kv-reduce emit-keyval sink coll))
+
+(defn ^:private sink-keyvals-wrapped
+  "Sinking function for wrapping a sink then emitting key/value tuples, as per
+`sink-keyvals-raw`."
+  [sink coll] (sink-wrapped sink #(pr/kv-reduce emit-keyval % coll)))
 
 (def ^:private sink-fns
   "Map from sink-type keyword to sinking function."
   {:default sink-default
    :none sink-none
-   :keyvals (sink-emit-wrapped emit-keyval),
+   :keyvals sink-keyvals-wrapped,
    :keys (sink-emit-wrapped emit-key),
    :vals (sink-emit-wrapped emit-val),
-   :keyvals-raw (sink-emit-raw emit-keyval),
+   :keyvals-raw sink-keyvals-raw,
    :keys-raw (sink-emit-raw emit-key),
    :vals-raw (sink-emit-raw emit-val),
    })
@@ -5,11 +5,15 @@
             [clojure.core.protocols :as ccp]
             [parkour (conf :as conf) (cser :as cser) (wrapper :as w)
              ,       (reducers :as pr)]
+            [parkour.mapreduce (spill :as spill)]
             [parkour.util :refer [returning mev]]
-            [parkour.util.map-combine :refer [map-combine]])
-  (:import [clojure.lang Seqable IteratorSeq]
+            [parkour.util.map-combine :refer [map-combine]]
+            [pjstadig.scopes :as s])
+  (:import [clojure.lang Seqable IteratorSeq IChunk PersistentQueue Var]
            [java.io Closeable]
            [java.util Collection]
+           [java.util.concurrent
+            , Callable ExecutionException ForkJoinPool Future]
            [org.apache.hadoop.conf Configurable]
            [org.apache.hadoop.mapreduce MapContext ReduceContext]
            [org.apache.hadoop.mapreduce TaskInputOutputContext]))
@@ -117,14 +121,55 @@ and `dataf` to retrieve the tuple values passed to `f`."
                    (source-reduce* nextf dataf source f acc))
                  init (splits source)))))
 
+(defn source-reduce-kv*
+  "Single-source implementation of `source-reduce-kv`."
+  [source f init]
+  (with-open [source (initialize source)]
+    (loop [acc init]
+      (if-not (next-keyval source)
+        acc
+        (let [acc (f acc (key source) (val source))]
+          (if (reduced? acc)
+            acc
+            (recur acc)))))))
+
+(defn source-reduce-kv
+  "As per `reduce-kv`, but in terms of the `TupleSource` protocol.  Passes each
+tuple's key and value directly to `f`, without allocating a tuple pair."
+  [source f init]
+  (case (nsplits source)
+    0 init
+    1 (let [acc (source-reduce-kv* source f init)]
+        (if (reduced? acc) @acc acc))
+    , (reduce (fn [acc source]
+                (source-reduce-kv* source f acc))
+              init (splits source))))
+
+(declare fold-threads source-pfold*)
+
+(defn ^:private pfoldable?
+  "True iff `source` iterated via `nextf` yields tuples which may be reduced on
+other threads: those of an unwrapped map-task source read by key/value tuple,
+rather than raw reused `Writable`s or the value iterables of a reduce context."
+  [nextf source]
+  (and (identical? next-keyval nextf)
+       (instance? MapContext (-> source meta ::wrapped))))
+
 (defn source-fold
-  "As per `r/fold`, but in terms of the `TupleSource` protocol."
+  "As per `r/fold`, but in terms of the `TupleSource` protocol.  Folds single
+unwrapped map-task sources iterated by key/value tuple in parallel as per
+`source-pfold` when the `parkour.source.fold.threads` configuration parameter is
+positive.  Other sources fold in parallel only via the explicitly parallel
+source shapes."
   ([source combinef reducef]
      (source-fold next-keyval keyval source combinef reducef))
   ([nextf dataf source combinef reducef]
      (case (nsplits source)
        0 (combinef)
-       1 (source-reduce* nextf dataf source reducef (combinef))
+       1 (let [threads (if (pfoldable? nextf source) (fold-threads source 0) 0)]
+           (if (pos? threads)
+             (source-pfold* threads nextf dataf source combinef reducef)
+             (source-reduce* nextf dataf source reducef (combinef))))
        , (let [mapf #(source-reduce* nextf dataf % reducef (combinef))]
            (map-combine mapf combinef (splits source))))))
 
@@ -165,6 +210,12 @@ iteration function `nextf` and extraction function `dataf`."
       Seqable
       (seq [_] (source-seq nextf dataf source))
 
+      pr/KVReducible
+      (-kv-reduce [this f init]
+        (if (identical? keyval dataf)
+          (source-reduce-kv source f init)
+          (source-reduce nextf dataf source (fn [acc [k v]] (f acc k v)) init)))
+
       Closeable
       (close [_] (-close source))
 
@@ -179,6 +230,203 @@ iteration function `nextf` and extraction function `dataf`."
       (-nsplits [_] (-nsplits source))
       (-splits [_] (map reducer (-splits source))))))
 
+(def ^:private ^:const chunk-size-default
+  "Default number of records per source chunk."
+  256)
+
+(defn ^:private chunk-size
+  "Number of records per chunk for `source`, as configured by the
+`parkour.source.chunk.size` parameter."
+  ^long [source]
+  (if-let [conf (conf/ig source)]
+    (conf/get-int conf "parkour.source.chunk.size" chunk-size-default)
+    chunk-size-default))
+
+(defn ^:private fill-chunk
+  "Chunk of the data of up to `n` successive tuples of `source`, as per `nextf`
+and `dataf`, or `nil` if `source` is exhausted."
+  [nextf dataf source ^long n]
+  (let [buf (chunk-buffer n)]
+    (loop [i 0]
+      (if (and (< i n) (nextf source))
+        (do (chunk-append buf (dataf source))
+            (recur (inc i)))
+        (if (pos? i) (chunk buf))))))
+
+(defn chunk-source
+  "Make a tuple source which yields as values `ArrayChunk`s of the data of up to
+`n` successive tuples of `source`, as per iteration function `nextf` and
+extraction function `dataf`.  Throws if `source` is a raw task context, the
+reused `Writable`s of which chunks would alias."
+  [n nextf dataf source]
+  (when (instance? TaskInputOutputContext source)
+    (throw (ex-info "Cannot chunk raw task context tuples; unwrap first."
+                    {:source (str source)})))
+  (let [current (atom nil)]
+    (reify
+      Configurable
+      (getConf [_] (conf/ig source))
+
+      TupleSource
+      (val [_] @current)
+      (next-keyval [_]
+        (boolean (reset! current (fill-chunk nextf dataf source n))))
+      (-initialize [_] (-initialize source))
+      (-close [_] (-close source))
+      (-nsplits [_] (-nsplits source))
+      (-splits [_] (map (partial chunk-source n nextf dataf)
+                        (-splits source)))
+
+      Closeable
+      (close [_] (-close source)))))
+
+(defn ^:private chunk-cat
+  "Chunked seq of the contents of the seq of chunks `chunks`."
+  [chunks]
+  (lazy-seq
+   (when-let [chunks (seq chunks)]
+     (chunk-cons (first chunks) (chunk-cat (rest chunks))))))
+
+(defn chunked
+  "Make a tuple source `source` `reduce`able and `seq`able as per `reducer`,
+but `seq` reading tuples in chunks, yielding a chunked seq which allocates a
+seq cell per chunk rather than per tuple.  Reduction reads tuples directly, as
+chunking would only add overhead."
+  [nextf dataf source]
+  (let [n (chunk-size source)]
+    (reify
+      ccp/CollReduce
+      (coll-reduce [this f] (ccp/coll-reduce this f (f)))
+      (coll-reduce [_ f init] (source-reduce nextf dataf source f init))
+
+      r/CollFold
+      (coll-fold [_ _ combinef reducef]
+        (source-fold nextf dataf source combinef reducef))
+
+      Seqable
+      (seq [_]
+        (->> (chunk-source n nextf dataf source)
+             (source-seq next-keyval val)
+             (chunk-cat)
+             (seq)))
+
+      Closeable
+      (close [_] (-close source)))))
+
+(defn ^:private fold-threads
+  "Number of parallel fold threads for `source`, as configured by the
+`parkour.source.fold.threads` parameter, or `default` if not configured."
+  ^long [source ^long default]
+  (if-let [conf (conf/ig source)]
+    (conf/get-int conf "parkour.source.fold.threads" default)
+    default))
+
+(defn ^:private chunk-reduce
+  "Result of reducing `chunk` via `reducef`, with initial value `(combinef)`."
+  [combinef reducef ^IChunk chunk]
+  (let [acc (.reduce chunk reducef (combinef))]
+    (if (reduced? acc) @acc acc)))
+
+(def ^:private pools
+  "Atom of map from tuple of task resource scope and thread count to the shared
+fork/join pool of that many threads for that scope.  Entries are removed and
+their pools shut down on scope exit."
+  (atom {}))
+
+(defn ^:private fold-pool
+  "Tuple of fork/join pool of `threads` threads and function of no arguments
+releasing it.  Pools are shared across the folds of the current task resource
+scope and shut down on scope exit, or if no scope is active, created anew and
+shut down on release."
+  [threads]
+  (let [threads (int threads)]
+    (if-not (bound? #'s/*resources*)
+      (let [pool (ForkJoinPool. threads)]
+        [pool #(.shutdown pool)])
+      (let [key [s/*resources* threads]]
+        (locking pools
+          (if-let [pool (get @pools key)]
+            [pool (constantly nil)]
+            (let [pool (ForkJoinPool. threads)]
+              (swap! pools assoc key pool)
+              (s/scoped! pool (fn [^ForkJoinPool pool]
+                                (locking pools (swap! pools dissoc key))
+                                (.shutdown pool)))
+              [pool (constantly nil)])))))))
+
+(defn source-pfold*
+  "Single-source implementation of `source-pfold`."
+  [threads nextf dataf source combinef reducef]
+  (let [n (chunk-size source), window (* 2 (long threads))
+        [^ForkJoinPool pool release] (fold-pool threads)
+        frame (Var/cloneThreadBindingFrame)
+        submit (fn [chunk]
+                 (let [task (fn []
+                              (let [prev (Var/getThreadBindingFrame)]
+                                (Var/resetThreadBindingFrame frame)
+                                (try
+                                  (chunk-reduce combinef reducef chunk)
+                                  (finally
+                                    (Var/resetThreadBindingFrame prev)))))]
+                   (.submit pool ^Callable task)))
+        result (fn [^Future f] (.get f))]
+    (try
+      (with-open [source (initialize source)]
+        (loop [acc (combinef), pending PersistentQueue/EMPTY]
+          (if (<= window (count pending))
+            (recur (combinef acc (result (peek pending))) (pop pending))
+            (if-let [chunk (fill-chunk nextf dataf source n)]
+              (recur acc (conj pending (submit chunk)))
+              (reduce #(combinef %1 (result %2)) acc pending)))))
+      (catch ExecutionException e
+        (throw (or (.getCause e) e)))
+      (finally
+        (release)))))
+
+(defn source-pfold
+  "As per `source-fold`, but reading successive chunks of tuples on the calling
+thread and reducing each chunk via `reducef` in parallel on a fork/join pool of
+`threads` threads.  Combines the per-chunk results in source order via
+`combinef` on the calling thread.  Pools are shared between the folds of each
+task and shut down when it ends, and pool threads run with the dynamic bindings
+of the calling thread.  Writes to task contexts are serialized, so `reducef` may
+emit to the task context, but not via sinks shared between threads (as e.g.
+`mr/wrap-sink` sinks reuse `Writable`s).  The tuple data must not alias mutable
+state (as e.g. raw reused Hadoop `Writable`s do)."
+  ([threads source combinef reducef]
+     (source-pfold threads next-keyval keyval source combinef reducef))
+  ([threads nextf dataf source combinef reducef]
+     (case (nsplits source)
+       0 (combinef)
+       1 (source-pfold* threads nextf dataf source combinef reducef)
+       , (reduce (fn [acc source]
+                   (combinef acc (source-pfold* threads nextf dataf source
+                                                combinef reducef)))
+                 (combinef) (splits source)))))
+
+(defn parallel
+  "Make a tuple source `source` `reduce`able and `seq`able as per `reducer`,
+but `r/fold`able in parallel within the current task as per `source-pfold`.
+Uses the number of threads configured by the `parkour.source.fold.threads`
+parameter, or the number of available processors if not configured."
+  [nextf dataf source]
+  (let [nprocs (.availableProcessors (Runtime/getRuntime))
+        threads (max 1 (fold-threads source nprocs))]
+    (reify
+      ccp/CollReduce
+      (coll-reduce [this f] (ccp/coll-reduce this f (f)))
+      (coll-reduce [_ f init] (source-reduce nextf dataf source f init))
+
+      r/CollFold
+      (coll-fold [_ _ combinef reducef]
+        (source-pfold threads nextf dataf source combinef reducef))
+
+      Seqable
+      (seq [_] (source-seq nextf dataf source))
+
+      Closeable
+      (close [_] (-close source)))))
+
 (defn seq-source
   "Make a tuple source from `seq`able collection `coll`."
   [coll]
@@ -249,7 +497,10 @@ iteration function `nextf` and extraction function `dataf`."
 
   r/CollFold
   (coll-fold [this _ combinef reducef]
-    (source-fold this combinef reducef)))
+    (source-fold this combinef reducef))
+
+  pr/KVReducible
+  (-kv-reduce [this f init] (source-reduce-kv this f init)))
 
 (defn empty-source
   "Concrete (non-`nil`) tuple source with no tuples."
@@ -273,6 +524,9 @@ iteration function `nextf` and extraction function `dataf`."
       (coll-reduce [this f] (f))
       (coll-reduce [this f init] init)
 
+      pr/KVReducible
+      (-kv-reduce [this f init] init)
+
       r/CollFold
       (coll-fold [this _ combinef reducef] (combinef))
 
@@ -282,34 +536,39 @@ iteration function `nextf` and extraction function `dataf`."
 (defn unwrap-source
   "Produce \"unwrapper\" for `source`, which unwraps each accessed entry."
   [source]
-  (reify
-    Configurable
-    (getConf [_] (conf/ig source))
-
-    TupleSource
-    (key [_] (w/unwrap (key source)))
-    (val [_] (w/unwrap (val source)))
-    (vals [_] (mapping w/unwrap (vals source)))
-    (next-keyval [this] (next-keyval source))
-    (next-key [this] (next-key source))
-    (-initialize [_] (-initialize source))
-    (-close [_] (-close source))
-    (-nsplits [_] (-nsplits source))
-    (-splits [this] (map unwrap-source (-splits source)))
-
-    Closeable
-    (close [_] (-close source))
-
-    ccp/CollReduce
-    (coll-reduce [this f] (ccp/coll-reduce this f (f)))
-    (coll-reduce [this f init] (source-reduce this f init))
-
-    r/CollFold
-    (coll-fold [this _ combinef reducef]
-      (source-fold this combinef reducef))
-
-    Seqable
-    (seq [this] (source-seq this))))
+  (with-meta
+   (reify
+     Configurable
+     (getConf [_] (conf/ig source))
+
+     TupleSource
+     (key [_] (w/unwrap (key source)))
+     (val [_] (w/unwrap (val source)))
+     (vals [_] (mapping w/unwrap (vals source)))
+     (next-keyval [this] (next-keyval source))
+     (next-key [this] (next-key source))
+     (-initialize [_] (-initialize source))
+     (-close [_] (-close source))
+     (-nsplits [_] (-nsplits source))
+     (-splits [this] (map unwrap-source (-splits source)))
+
+     Closeable
+     (close [_] (-close source))
+
+     ccp/CollReduce
+     (coll-reduce [this f] (ccp/coll-reduce this f (f)))
+     (coll-reduce [this f init] (source-reduce this f init))
+
+     r/CollFold
+     (coll-fold [this _ combinef reducef]
+       (source-fold this combinef reducef))
+
+     pr/KVReducible
+     (-kv-reduce [this f init] (source-reduce-kv this f init))
+
+     Seqable
+     (seq [this] (source-seq this)))
+   {::wrapped source}))
 
 (extend-protocol w/Wrapper
   TaskInputOutputContext
@@ -382,6 +641,76 @@ keys from the tuples in `context`."
 from the tuples in `context`."
   [context] (reducer next-key keys context))
 
+(defn ^:private buffered-vals-fn
+  "Function returning the current key's sequence of associated values from
+`context` as a re-iterable, spillable buffered collection."
+  [context]
+  (let [raw (-> context meta (get ::wrapped context))]
+    (if (instance? ReduceContext raw)
+      (let [buffer (spill/buffer-fn raw (not (identical? raw context)))]
+        (fn [_] (buffer)))
+      (fn [context] (into [] (vals context))))))
+
+(defn shape-valgroups-buffered
+  "Produce re-iterable sequences of values associated with distinct grouping
+keys from the tuples in `context`.  Each sequence may be reduced any number of
+times until the source advances to the next key, buffering values in memory up
+to a configured limit and spilling to task-local disk beyond it."
+  [context] (reducer next-key (buffered-vals-fn context) context))
+
+(defn shape-keyvalgroups-buffered
+  "Produce pairs of distinct group keys and associated re-iterable sequences of
+values from the tuples in `context`, as per `shape-valgroups-buffered`."
+  [context]
+  (let [vals (buffered-vals-fn context)]
+    (reducer next-key #(mev (key %) (vals %)) context)))
+
+(defn ^:private shape-chunks
+  "Produce chunks of the tuple data extracted by `dataf` from the tuples in
+`context`."
+  [dataf context]
+  (reducer next-keyval val
+           (chunk-source (chunk-size context) next-keyval dataf context)))
+
+(defn shape-key-chunks
+  "Produce `ArrayChunk`s of keys from the tuples in `context`."
+  [context] (shape-chunks key context))
+
+(defn shape-val-chunks
+  "Produce `ArrayChunk`s of values from the tuples in `context`."
+  [context] (shape-chunks val context))
+
+(defn shape-keyval-chunks
+  "Produce `ArrayChunk`s of pairs of keys and values from the tuples in
+`context`."
+  [context] (shape-chunks keyval context))
+
+(defn shape-keys-chunked
+  "Produce keys only from the tuples in `context`, read in chunks."
+  [context] (chunked next-keyval key context))
+
+(defn shape-vals-chunked
+  "Produce values only from the tuples in `context`, read in chunks."
+  [context] (chunked next-keyval val context))
+
+(defn shape-keyvals-chunked
+  "Produce pairs of keys and values from the tuples in `context`, read in
+chunks."
+  [context] (chunked next-keyval keyval context))
+
+(defn shape-keys-parallel
+  "Produce keys only from the tuples in `context`, `r/fold`able in parallel."
+  [context] (parallel next-keyval key context))
+
+(defn shape-vals-parallel
+  "Produce values only from the tuples in `context`, `r/fold`able in parallel."
+  [context] (parallel next-keyval val context))
+
+(defn shape-keyvals-parallel
+  "Produce pairs of keys and values from the tuples in `context`, `r/fold`able
+in parallel."
+  [context] (parallel next-keyval keyval context))
+
 (def source-fns
   "Map of keywords to built-in source-shaping functions."
   {:default shape-default
@@ -394,6 +723,17 @@ from the tuples in `context`."
    :keykeyvalgroups shape-keykeyvalgroups
    :keykeygroups shape-keykeygroups
    :keysgroups shape-keysgroups
+   :valgroups-buffered shape-valgroups-buffered
+   :keyvalgroups-buffered shape-keyvalgroups-buffered
+   :key-chunks shape-key-chunks
+   :val-chunks shape-val-chunks
+   :keyval-chunks shape-keyval-chunks
+   :keys-chunked shape-keys-chunked
+   :vals-chunked shape-vals-chunked
+   :keyvals-chunked shape-keyvals-chunked
+   :keys-parallel shape-keys-parallel
+   :vals-parallel shape-vals-parallel
+   :keyvals-parallel shape-keyvals-parallel
    })
 
 (defn source-fn
@@ -0,0 +1,180 @@
+(ns parkour.mapreduce.spill
+  "Buffered, re-iterable value groups which spill to task-local disk."
+  (:require [clojure.core.protocols :as ccp]
+            [clojure.core.reducers :as r]
+            [clojure.java.io :as io]
+            [pjstadig.scopes :as s]
+            [parkour (conf :as conf) (wrapper :as w)]
+            [parkour.util :refer [ignore-errors]])
+  (:import [java.io ByteArrayInputStream ByteArrayOutputStream File]
+           [java.io InputStream OutputStream]
+           [clojure.lang Counted Seqable]
+           [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs LocalDirAllocator]
+           [org.apache.hadoop.io.serializer SerializationFactory]
+           [org.apache.hadoop.io.serializer Deserializer Serializer]
+           [org.apache.hadoop.mapreduce Counter ReduceContext]
+           [org.apache.hadoop.mapreduce TaskInputOutputContext]))
+
+(def ^:private ^:const counter-group
+  "Buffered Value Groups")
+
+(def ^:private ^:const limit-key
+  "Configuration key for the in-memory buffer size limit, in bytes."
+  "parkour.spill.buffer.bytes")
+
+(def ^:private ^:const limit-default
+  "Default in-memory buffer size limit, in bytes."
+  33554432)
+
+(defn ^:private serializer
+  {:tag `Serializer}
+  [conf klass] (-> conf SerializationFactory. (.getSerializer klass)))
+
+(defn ^:private deserializer
+  {:tag `Deserializer}
+  [conf klass] (-> conf SerializationFactory. (.getDeserializer klass)))
+
+(defn ^:private delete-file
+  "Delete `file` if non-`nil`, ignoring errors."
+  [^File file] (when file (ignore-errors (.delete file))))
+
+(defn ^:private local-dirs-key
+  "Configuration key for the task-local directories of `conf`."
+  [conf]
+  (if (conf/get conf "mapreduce.cluster.local.dir")
+    "mapreduce.cluster.local.dir"
+    "mapred.local.dir"))
+
+(defn ^:private spill-file
+  "New spill file under the task-local directories of `conf`, deleted on
+leaving the current resource scope if not before."
+  {:tag `File}
+  [conf]
+  (let [alloc (LocalDirAllocator. (local-dirs-key conf))
+        size LocalDirAllocator/SIZE_UNKNOWN
+        file (.createTmpFileForWrite alloc "parkour-spill" size conf)]
+    (if (bound? #'s/*resources*)
+      (s/scoped! file delete-file)
+      file)))
+
+(defn ^:private write-group
+  "Serialize all values of `vals` via the serialization for `klass`.  Buffer in
+memory up to `limit` bytes, then spill to a new local file.  Return map of
+value-count `:n`, in-memory `:bytes` when not spilled, spill `:file` when
+spilled, and `:spilled` byte-count."
+  [^Configuration conf ^Class klass ^Iterable vals ^long limit]
+  (let [vbuf (ByteArrayOutputStream.), mem (ByteArrayOutputStream.)
+        ser (doto (serializer conf klass) (.open vbuf))
+        spill (atom nil)]
+    (try
+      (loop [it (.iterator vals), n 0, ^OutputStream out mem, file nil]
+        (if-not (.hasNext it)
+          (let [spilled (when file (.close out) (.length ^File file))]
+            {:n n, :file file, :spilled (or spilled 0),
+             :bytes (when-not file (.toByteArray mem))})
+          (do
+            (.serialize ser (.next it))
+            (.writeTo vbuf out)
+            (.reset vbuf)
+            (if (or file (<= (.size mem) limit))
+              (recur it (inc n) out file)
+              (let [file (spill-file conf)
+                    out (reset! spill (io/output-stream file))]
+                (.writeTo mem out)
+                (.reset mem)
+                (recur it (inc n) out file))))))
+      (finally
+        (try
+          (.close ser)
+          (finally
+            (when-let [^OutputStream out @spill]
+              (.close out))))))))
+
+(defn ^:private group-input
+  "Input stream over buffered group `group`."
+  {:tag `InputStream}
+  [{:keys [^bytes bytes ^File file]}]
+  (cond
+    (nil? file) (ByteArrayInputStream. bytes)
+    (.exists file) (io/input-stream file)
+    :else (throw (ex-info "Spilled value group no longer available."
+                          {:file (str file)}))))
+
+(defn ^:private group-seq
+  "Lazy seq over the values of buffered group `group`, closing the underlying
+stream once exhausted."
+  [conf klass unwrap? {:keys [n], :as group}]
+  (let [in (group-input group)
+        d (doto (deserializer conf klass) (.open in))
+        unwrap (if unwrap? w/unwrap identity)]
+    ((fn step [^long i]
+       (lazy-seq
+        (if (< i (long n))
+          (cons (unwrap (.deserialize d nil)) (step (inc i)))
+          (.close d))))
+     0)))
+
+(defn ^:private group-reduce
+  "Reduce `f` over the values of buffered group `group`, with `init`."
+  [conf klass unwrap? {:keys [n], :as group} f init]
+  (with-open [in (group-input group)]
+    (let [d (doto (deserializer conf klass) (.open in))
+          unwrap (if unwrap? w/unwrap identity)]
+      (loop [i 0, acc init]
+        (cond
+          (reduced? acc) @acc
+          (>= i (long n)) acc
+          :else (recur (inc i) (f acc (unwrap (.deserialize d nil)))))))))
+
+(defn ^:private buffered-group
+  "Re-iterable collection over buffered group `group`."
+  [conf klass unwrap? group]
+  (reify
+    Counted
+    (count [_] (int (:n group)))
+
+    ccp/CollReduce
+    (coll-reduce [this f] (ccp/coll-reduce this f (f)))
+    (coll-reduce [_ f init] (group-reduce conf klass unwrap? group f init))
+
+    r/CollFold
+    (coll-fold [this _ combinef reducef]
+      (ccp/coll-reduce this reducef (combinef)))
+
+    Seqable
+    (seq [_] (seq (group-seq conf klass unwrap? group)))))
+
+(defn ^:private counter
+  "Spill counter `name` for `context`, or `nil` if not a task context."
+  {:tag `Counter}
+  [context name]
+  (when (instance? TaskInputOutputContext context)
+    (.getCounter ^TaskInputOutputContext context counter-group name)))
+
+(defn buffer-fn
+  "Return a function which buffers the values of the current key of reduce
+context `context`, returning a re-iterable collection of those values.  Each
+buffered group's values are serialized via the job's configured serialization
+for the map-output value class, held in memory up to the configured
+`parkour.spill.buffer.bytes` limit, and spilled to task-local disk beyond it.
+Spill files are written under the task-local directories, and each is deleted
+when the function buffers the next group, bounding disk use by one group; a
+buffered group thus remains valid only until the context advances to the next
+key.  When `unwrap?` is true, values are unwrapped on access."
+  [^ReduceContext context unwrap?]
+  (let [conf (conf/ig context), klass (.getMapOutputValueClass context)
+        limit (conf/get-long conf limit-key limit-default)
+        bytes-c (counter context "spilled bytes")
+        groups-c (counter context "spilled groups")
+        prev (atom nil)]
+    (fn []
+      (delete-file @prev)
+      (reset! prev nil)
+      (let [{:keys [file spilled], :as group}
+            , (write-group conf klass (.getValues context) limit)]
+        (reset! prev file)
+        (when (and file bytes-c)
+          (.increment bytes-c spilled)
+          (.increment groups-c 1))
+        (buffered-group conf klass unwrap? group)))))
@@ -5,8 +5,9 @@
             [clojure.core.reducers :as r]
             [clojure.core.protocols :as ccp]
             [transduce.reducers :as tr]
-            [parkour.util :refer [returning]])
-  (:import [java.util Random]))
+            [parkour.util :refer [returning mev]])
+  (:import [clojure.lang Seqable]
+           [java.util Random]))
 
 (defn concat
   "Reducers version of `concat`."
@@ -172,3 +173,70 @@ will be in random order.  Entire sample will be realized in memory."
                         sample (if (< j n) (assoc sample j x) sample)]
                     [sample i])))
               [[] 0] coll))))
+
+(defprotocol KVReducible
+  "Protocol for collections of key/value tuples which may be reduced by passing
+each tuple's key and value directly to a three-argument reducing function."
+  (-kv-reduce [coll f init]
+    "Reduce `f` over the keys and values of `coll`, with initial value `init`."))
+
+(extend-protocol KVReducible
+  nil
+  (-kv-reduce [_ f init] init)
+
+  Object
+  (-kv-reduce [coll f init]
+    (reduce (fn [acc [k v]] (f acc k v)) init coll)))
+
+(defn kv-reduce
+  "As per `reduce-kv`, but in terms of the `KVReducible` protocol.  Collections
+not specifically supporting key/value reduction are reduced as collections of
+key/value pairs."
+  [f init coll] (-kv-reduce coll f init))
+
+(defn ^:private kv-reducer
+  "Make key/value-reducible `coll` with the key/value reducing function
+transformation `xf` applied, also `reduce`able, `fold`able, and lazily `seq`able
+as a collection of key/value pairs."
+  [xf coll]
+  (let [pairwise (fn [f]
+                   (let [f (xf (fn [acc k v] (f acc (mev k v))))]
+                     (fn [acc [k v]] (f acc k v))))]
+    (reify
+      KVReducible
+      (-kv-reduce [_ f init] (-kv-reduce coll (xf f) init))
+
+      ccp/CollReduce
+      (coll-reduce [this f] (ccp/coll-reduce this f (f)))
+      (coll-reduce [_ f init]
+        (-kv-reduce coll (xf (fn [acc k v] (f acc (mev k v)))) init))
+
+      r/CollFold
+      (coll-fold [_ n combinef reducef]
+        (r/coll-fold coll n combinef (pairwise reducef)))
+
+      Seqable
+      (seq [_]
+        (let [step (pairwise conj)]
+          (seq (mapcat (fn [kv]
+                         (let [acc (step [] kv)]
+                           (if (reduced? acc) @acc acc)))
+                       coll)))))))
+
+(defn kv-map-keys
+  "Key/value-reducible version of mapping `f` over the keys of the key/value
+tuples of `coll`, retaining the original values."
+  [f coll]
+  (kv-reducer (fn [f1] (fn [acc k v] (f1 acc (f k) v))) coll))
+
+(defn kv-map-vals
+  "Key/value-reducible version of mapping `f` over the values of the key/value
+tuples of `coll`, retaining the original keys."
+  [f coll]
+  (kv-reducer (fn [f1] (fn [acc k v] (f1 acc k (f v)))) coll))
+
+(defn kv-filter
+  "Key/value-reducible version of retaining only those key/value tuples of
+`coll` for which `(pred k v)` is true."
+  [pred coll]
+  (kv-reducer (fn [f1] (fn [acc k v] (if (pred k v) (f1 acc k v) acc))) coll))
@@ -0,0 +1,378 @@
+(ns parkour.remote.columnar
+  {:private true}
+  (:require [clojure.set :as set]
+            [clojure.tools.logging :as log]
+            [parkour (conf :as conf) (cser :as cser) (fs :as fs)
+             ,       (mapreduce :as mr)])
+  (:import [java.io ByteArrayInputStream ByteArrayOutputStream]
+           [java.util.zip DeflaterOutputStream InflaterInputStream]
+           [org.apache.hadoop.fs BlockLocation FileStatus FileSystem Path]
+           [org.apache.hadoop.fs FSDataInputStream FSDataOutputStream]
+           [org.apache.hadoop.mapreduce JobContext RecordWriter]
+           [org.apache.hadoop.mapreduce TaskAttemptContext]
+           [org.apache.hadoop.mapreduce.lib.input FileInputFormat]
+           [org.apache.hadoop.mapreduce.lib.output FileOutputFormat]
+           [parkour.hadoop EdnInputSplit IInputFormat IRecordWriter]
+           [parkour.hadoop RecordSeqable RecordSeqableRecordReader]
+           [parkour.hadoop Columnar$RecordWriter]))
+
+(def ^:private ^:const magic
+  "Columnar file trailing magic number, ASCII `PCOL`."
+  0x50434f4c)
+
+(def ^:const columns-key
+  "Configuration key for the columns projected by a columnar dseq."
+  "parkour.columnar.columns")
+
+(def ^:const where-key
+  "Configuration key for the predicate of a columnar dseq."
+  "parkour.columnar.where")
+
+(def ^:const block-rows-key
+  "Configuration key for the number of records per columnar block."
+  "parkour.columnar.block.rows")
+
+(def ^:private ^:const block-rows-default
+  "Default number of records per columnar block."
+  16384)
+
+(def ^:private ^:const split-bytes-key
+  "Configuration key for the maximum number of bytes per columnar input split."
+  "parkour.columnar.split.bytes")
+
+(def ^:private ^:const split-bytes-default
+  "Default maximum number of bytes per columnar input split."
+  67108864)
+
+(defn ^:private cmp
+  "Result of comparing `x` to `y` as per `compare`, or `nil` if incomparable."
+  [x y] (try (compare x y) (catch ClassCastException _ nil)))
+
+(defn ^:private cmp?
+  "True iff `x` and `y` are comparable and `f` is true of their comparison."
+  [f x y] (let [c (cmp x y)] (boolean (and c (f c)))))
+
+(defn ^:private may?
+  "True unless `x` and `y` are comparable and `f` is false of their comparison."
+  [f x y] (let [c (cmp x y)] (or (nil? c) (boolean (f c)))))
+
+(def ^:private not-pos? (complement pos?))
+(def ^:private not-neg? (complement neg?))
+
+(def ^:private leaf-ops
+  "Map of column-comparison predicate operators to their argument counts,
+including the column."
+  {:= 2, :not= 2, :< 2, :<= 2, :> 2, :>= 2, :between 3, :in 2})
+
+(defn validate
+  "Throw if `pred` is neither `nil` nor a valid columnar predicate."
+  [pred]
+  (when-not (nil? pred)
+    (let [[op & args] (when (vector? pred) pred), nargs (count args)
+          invalid #(throw (ex-info (str "Invalid columnar predicate: "
+                                        (pr-str pred))
+                                   {:pred pred}))]
+      (cond
+        (#{:and :or} op) (doseq [pred args] (validate pred))
+        (= :not op) (if (= 1 nargs) (validate (first args)) (invalid))
+        (leaf-ops op) (when-not (and (= (leaf-ops op) nargs)
+                                     (some? (first args))
+                                     (or (not= :in op) (coll? (second args))))
+                        (invalid))
+        :else (invalid)))))
+
+(defn ^:private pred-columns
+  "Set of the columns referenced by predicate `pred`."
+  [pred]
+  (let [[op & args] pred]
+    (cond
+      (nil? pred) #{}
+      (#{:and :or :not} op) (reduce set/union #{} (map pred-columns args))
+      :else #{(first args)})))
+
+(defn ^:private matches?
+  "True iff map record `row` satisfies predicate `pred`."
+  [pred row]
+  (let [[op & args] pred]
+    (case op
+      :and (every? #(matches? % row) args)
+      :or (boolean (some #(matches? % row) args))
+      :not (not (matches? (first args) row))
+      #_else
+      (let [[col v w] args, x (get row col)]
+        (and (some? x)
+             (case op
+               := (cmp? zero? x v)
+               :not= (not (cmp? zero? x v))
+               :< (cmp? neg? x v)
+               :<= (cmp? not-pos? x v)
+               :> (cmp? pos? x v)
+               :>= (cmp? not-neg? x v)
+               :between (and (cmp? not-neg? x v) (cmp? not-pos? x w))
+               :in (boolean (some #(cmp? zero? x %) v))))))))
+
+(defn ^:private range-may?
+  "True unless a column with values ranging from `lo` to `hi` cannot satisfy
+the column-comparison operator `op` with arguments `v` and `w`."
+  [op lo hi v w]
+  (case op
+    := (and (may? not-pos? lo v) (may? not-neg? hi v))
+    :not= (not (and (cmp? zero? lo v) (cmp? zero? hi v)))
+    :< (may? neg? lo v)
+    :<= (may? not-pos? lo v)
+    :> (may? pos? hi v)
+    :>= (may? not-neg? hi v)
+    :between (and (may? not-neg? hi v) (may? not-pos? lo w))
+    :in (boolean (some #(range-may? := lo hi % nil) v))))
+
+(defn ^:private may-match?
+  "True unless the column statistics of `block` show that no record of the block
+can satisfy predicate `pred`."
+  [pred block]
+  (let [[op & args] pred]
+    (case op
+      nil true
+      :and (every? #(may-match? % block) args)
+      :or (boolean (some #(may-match? % block) args))
+      :not true
+      #_else
+      (let [[col v w] args, stats (get-in block [:columns col])]
+        (cond
+          (nil? stats) false
+          (false? (:ordered stats)) true
+          (not (contains? stats :min)) false
+          :else (range-may? op (:min stats) (:max stats) v w))))))
+
+(defn ^:private column-stats
+  "Statistics for column values `vals`: the count of `:nulls`, and the `:min`
+and `:max` non-`nil` values when mutually comparable, or `:ordered` false when
+not."
+  [vals]
+  (let [xs (remove nil? vals), nulls (- (count vals) (count xs))]
+    (if (empty? xs)
+      {:nulls nulls}
+      (if-let [[lo hi] (reduce (fn [[lo hi] x]
+                                 (let [c1 (cmp x lo), c2 (cmp x hi)]
+                                   (if (and c1 c2)
+                                     [(if (neg? c1) x lo) (if (pos? c2) x hi)]
+                                     (reduced nil))))
+                               [(first xs) (first xs)] (rest xs))]
+        {:nulls nulls, :min lo, :max hi}
+        {:nulls nulls, :ordered false}))))
+
+(defn ^:private encode
+  "Compressed cser/EDN encoding of column values `vals`."
+  ^bytes [conf vals]
+  (let [bytes (ByteArrayOutputStream.)]
+    (with-open [out (DeflaterOutputStream. bytes)]
+      (.write out (.getBytes ^String (cser/pr-str conf vals) "UTF-8")))
+    (.toByteArray bytes)))
+
+(defn ^:private decode
+  "Column values decoded from compressed cser/EDN bytes `b`."
+  [conf ^bytes b]
+  (with-open [in (InflaterInputStream. (ByteArrayInputStream. b))]
+    (cser/read-string conf (slurp in :encoding "UTF-8"))))
+
+(defn ^:private write-block
+  "Write the column chunks of map records `rows` to `out`, returning the block
+metadata."
+  [conf ^FSDataOutputStream out rows]
+  (let [offset (.getPos out)
+        columns (reduce (fn [columns col]
+                          (let [vals (mapv #(get % col) rows)
+                                b (encode conf vals), pos (.getPos out)]
+                            (.write out b)
+                            (->> (assoc (column-stats vals)
+                                   :offset pos, :length (alength b))
+                                 (assoc columns col))))
+                        {} (->> rows (mapcat keys) distinct))]
+    {:offset offset, :length (- (.getPos out) offset),
+     :rows (count rows), :columns columns}))
+
+(defn ^:private write-footer
+  "Write the footer describing `blocks` to `out`."
+  [conf ^FSDataOutputStream out blocks]
+  (let [b (.getBytes ^String (cser/pr-str conf {:version 1, :blocks blocks})
+                     "UTF-8")]
+    (doto out
+      (.write b)
+      (.writeInt (alength b))
+      (.writeInt magic))))
+
+(defn record-writer
+  "Columnar file record-writer for output format `of` and task `context`."
+  {:tag `RecordWriter}
+  [^FileOutputFormat of ^TaskAttemptContext context]
+  (let [conf (conf/ig context)
+        path (.getDefaultWorkFile of context ".pcol")
+        out (fs/path-create (fs/path-fs conf path) path)
+        nrows (conf/get-int conf block-rows-key block-rows-default)
+        rows (atom []), blocks (atom [])
+        flush! #(when (seq @rows)
+                  (swap! blocks conj (write-block conf out @rows))
+                  (reset! rows []))]
+    (Columnar$RecordWriter.
+     (reify IRecordWriter
+       (write [_ key _]
+         (when-not (map? key)
+           (throw (ex-info "Columnar records must be maps" {:record key})))
+         (when (<= nrows (count (swap! rows conj key)))
+           (flush!)))
+       (close [_ _]
+         (flush!)
+         (write-footer conf out @blocks)
+         (.close ^FSDataOutputStream out))))))
+
+(defn ^:private read-footer
+  "Footer of the columnar file described by `status` in `fs`."
+  [conf ^FileSystem fs ^FileStatus status]
+  (let [p (.getPath status), len (.getLen status)]
+    (with-open [in (.open fs p)]
+      (let [[flen m] (when (<= 8 len)
+                       (.seek in (- len 8))
+                       [(.readInt in) (.readInt in)])]
+        (when-not (= magic m)
+          (throw (ex-info (str "Not a columnar file: " p) {:path (str p)})))
+        (let [b (byte-array flen)]
+          (.readFully in (- len 8 (long flen)) b)
+          (cser/read-string conf (String. b "UTF-8")))))))
+
+(defn ^:private hidden?
+  "True iff `p` is a hidden ('_'- or '.'-prefixed) file."
+  [^Path p] (let [name (.getName p)]
+              (or (.startsWith name "_") (.startsWith name "."))))
+
+(defn ^:private input-files
+  "Sequence of filesystem & file-status pairs for the input files of `context`."
+  [^JobContext context]
+  (let [conf (conf/ig context)]
+    (for [^Path p (FileInputFormat/getInputPaths context)
+          :let [fs (fs/path-fs conf p)
+                statuses (or (.globStatus fs p)
+                             (throw (ex-info (str "Input path does not exist: "
+                                                  p) {:path (str p)})))]
+          ^FileStatus status statuses
+          ^FileStatus status (if (.isDir status)
+                               (.listStatus fs (.getPath status))
+                               [status])
+          :when (not (or (.isDir status) (hidden? (.getPath status))))]
+      [fs status])))
+
+(defn ^:private block-locations
+  "Hosts holding the filesystem block at `offset` of file `status`."
+  [^FileSystem fs ^FileStatus status ^long offset]
+  (some->> (.getFileBlockLocations fs status offset 1)
+           (first)
+           (#(.getHosts ^BlockLocation %))
+           (vec)))
+
+(defn ^:private read-columns
+  "Columns of block metadata `block` to read for `projection` and `where`."
+  [projection where block]
+  (if (nil? projection)
+    (keys (:columns block))
+    (set/union (set projection) (pred-columns where))))
+
+(defn ^:private split-block
+  "Block metadata `block` trimmed to its record count and the offsets and
+lengths of the columns to read for `projection` and `where`."
+  [projection where block]
+  (let [cols (read-columns projection where block)]
+    {:rows (:rows block),
+     :columns (->> (select-keys (:columns block) cols)
+                   (map (fn [[col meta]]
+                          [col (select-keys meta [:offset :length])]))
+                   (into {}))}))
+
+(defn ^:private group-blocks
+  "Partition `blocks` into runs of consecutive blocks totaling no more than
+`split-bytes` bytes, except where a single block is larger."
+  [^long split-bytes blocks]
+  (let [[groups group]
+        , (reduce (fn [[groups group ^long n] block]
+                    (let [length (long (:length block)), n' (+ n length)]
+                      (if (and (seq group) (< split-bytes n'))
+                        [(conj groups group) [block] length]
+                        [groups (conj group block) n'])))
+                  [[] [] 0] blocks)]
+    (cond-> groups (seq group) (conj group))))
+
+(defn ^:private file-splits
+  "Split data for the blocks of columnar file `status` in `fs` which may match
+predicate `where`, grouping consecutive blocks up to `split-bytes` bytes."
+  [conf projection where split-bytes [fs ^FileStatus status]]
+  (let [path (str (.getPath status))]
+    (->> (read-footer conf fs status)
+         :blocks
+         (filter (partial may-match? where))
+         (group-blocks split-bytes)
+         (map (fn [blocks]
+                {:path path,
+                 :blocks (mapv (partial split-block projection where) blocks),
+                 ::mr/length (reduce + (map :length blocks)),
+                 ::mr/locations (->> blocks first :offset
+                                     (block-locations fs status))})))))
+
+(defn ^:private get-splits
+  "Input splits for the blocks of the columnar input files of `context` which
+may match the configured predicate."
+  [^JobContext context]
+  (let [conf (conf/ig context)
+        projection (cser/get conf columns-key nil)
+        where (cser/get conf where-key nil)
+        split-bytes (conf/get-long conf split-bytes-key split-bytes-default)
+        splits (->> (input-files context)
+                    (mapcat (partial file-splits conf projection where
+                                     split-bytes))
+                    (vec))]
+    (log/infof "Columnar input: %d splits, %d blocks selected"
+               (count splits) (reduce + (map (comp count :blocks) splits)))
+    (mapv #(EdnInputSplit. conf %) splits)))
+
+(defn ^:private block-rows
+  "Map records of `block` of the columnar file open as `in`."
+  [conf ^FSDataInputStream in block]
+  (let [chunks (mapv (fn [[col {:keys [offset length]}]]
+                       (let [b (byte-array length)]
+                         (.readFully in (long offset) b)
+                         [col (decode conf b)]))
+                     (:columns block))]
+    (map (fn [i]
+           (persistent!
+            (reduce (fn [row [col vals]]
+                      (let [x (nth vals i)]
+                        (if (nil? x) row (assoc! row col x))))
+                    (transient {}) chunks)))
+         (range (:rows block)))))
+
+(defn ^:private record-seqable
+  "Record seqable over the matching records of columnar split `split`.  Counts
+the total records of the split's blocks prior to predicate filtering, as an
+upper-bound estimate for progress reporting."
+  [conf split]
+  (let [projection (cser/get conf columns-key nil)
+        where (cser/get conf where-key nil)
+        p (fs/path (:path split)), in (fs/path-open (fs/path-fs conf p) p)
+        select (if (or (nil? projection)
+                       (every? (set projection) (pred-columns where)))
+                 identity
+                 #(select-keys % projection))]
+    (reify RecordSeqable
+      (count [_] (reduce + (map :rows (:blocks split))))
+      (seq [_]
+        (->> (:blocks split)
+             (mapcat (partial block-rows conf in))
+             (filter (if where (partial matches? where) (constantly true)))
+             (map select)
+             (seq)))
+      (close [_] (.close ^FSDataInputStream in)))))
+
+(defn input-format
+  []
+  (reify IInputFormat
+    (getSplits [_ context] (get-splits context))
+    (createRecordReader [_ split context]
+      (RecordSeqableRecordReader.
+       (fn [split context]
+         (record-seqable (conf/ig context) @split))))))
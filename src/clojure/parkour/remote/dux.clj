@@ -2,6 +2,7 @@
   (:require [clojure.core.reducers :as r]
             [parkour (conf :as conf) (wrapper :as w) (mapreduce :as mr)]
             [parkour.io (dux :as dux)]
+            [parkour.remote (subjob :as sj)]
             [parkour.util :refer [map-vals prev-reset!]])
   (:import [clojure.lang IDeref]
            [org.apache.hadoop.mapreduce Job TaskAttemptContext]
@@ -11,16 +12,14 @@
            [parkour.hadoop
              Dux$OutputFormat Dux$RecordWriter Dux$OutputCommitter]))
 
-(defn ^:private subjob
-  [conf subconf] (-> conf conf/clone (conf/merge! subconf) mr/job))
-
 (defn ^:private subof
   [^Job job] (->> job .getOutputFormatClass (w/new-instance job)))
 
 (defn output-committer*
   {:tag `IOutputCommitter}
-  [^TaskAttemptContext context jobs ofs rws]
+  [^TaskAttemptContext context jobs rws]
   (let [taid (.getTaskAttemptID context)
+        jobs (map-vals mr/job jobs), ofs (map-vals subof jobs)
         ocs (->> (keys jobs)
                  (map (fn [name]
                         (let [job (get jobs name)
@@ -80,14 +79,13 @@
 
 (defn output-format*
   [conf]
-  (let [diffs (->> conf mr/job dux/get-subconfs)
-        jobs (map-vals (partial subjob conf) diffs)
-        ofs (map-vals subof jobs)
+  (let [diffs (dux/get-subconfs conf)
+        jobs (map-vals (partial sj/job conf) diffs)
         rws (atom {}), rwtaid (atom nil)]
     (reify IOutputFormat
       (getRecordWriter [_ context] (record-writer context))
       (checkOutputSpecs [_ context]
-        (doseq [[name job] jobs, :let [of (get ofs name)]]
-          (.checkOutputSpecs ^OutputFormat of ^Job job)))
+        (doseq [[name job] jobs, :let [job (mr/job job)]]
+          (.checkOutputSpecs ^OutputFormat (subof job) job)))
       (getOutputCommitter [_ context]
-        (output-committer context jobs ofs rws)))))
+        (output-committer context jobs rws)))))
@@ -2,7 +2,9 @@
   {:private true}
   (:require [clojure.core.reducers :as r]
             [parkour (conf :as conf) (wrapper :as w) (mapreduce :as mr)]
-            [parkour.io.mux :as mux])
+            [parkour.io.mux :as mux]
+            [parkour.io (splits :as splits)]
+            [parkour.remote (subjob :as sj)])
   (:import [clojure.lang IDeref]
            [org.apache.hadoop.conf Configuration]
            [org.apache.hadoop.io Text]
@@ -54,11 +56,6 @@
   ([conf & args]
      (Mux$InputSplit. (conf/ig conf) (into-array Object args))))
 
-(defn ^:private subjob
-  {:tag `Job}
-  [context subconf]
-  (-> (conf/clone context) (conf/merge! subconf) (mr/job)))
-
 (defn ^:private input-format
   []
   (reify IInputFormat
@@ -66,18 +63,16 @@
       (->> (mux/get-subconfs context)
            (map-indexed vector)
            (r/mapcat (fn [[i subconf]]
-                       (let [job (subjob context subconf)
-                             klass (.getInputFormatClass job)
-                             inform (w/new-instance job klass)]
-                         (->> (.getSplits ^InputFormat inform job)
+                       (let [job (sj/job context subconf)
+                             klass (.getInputFormatClass job)]
+                         (->> (splits/input-splits job klass)
                               (r/map (partial input-split job i))))))
            (into [])))
     (createRecordReader [_ split context]
       (let [[i ^InputSplit split] @split
             subconf (-> context mux/get-subconfs (get i))
-            job (subjob context subconf)
-            klass (.getInputFormatClass job)
-            inform (w/new-instance job klass)
+            job (mr/job (sj/job context subconf))
+            inform (w/new-instance job (.getInputFormatClass job))
             context (mr/tac job (.getTaskAttemptID context))]
         (Mux$RecordReader.
          (.createRecordReader ^InputFormat inform split context))))))
@@ -87,9 +82,9 @@
   (fn [^Mapper$Context context]
     (let [i (-> context .getInputSplit deref first)
           subconf (-> context mux/get-subconfs (get i))
-          rdiff (-> (doto (conf/clone context)
-                      (conf/merge! subconf))
-                    (conf/diff context))]
+          rdiff (->> (keys subconf)
+                     (map (juxt identity (partial conf/get context)))
+                     (into {}))]
       (try
         (conf/merge! context subconf)
         (let [mapper (->> context .getMapperClass (w/new-instance context))]
@@ -0,0 +1,47 @@
+(ns parkour.remote.subjob
+  "Sub-job configuration templates, built once per task and copied before
+being handed to Hadoop or third-party code."
+  {:private true}
+  (:require [parkour (conf :as conf) (mapreduce :as mr)])
+  (:import [java.util WeakHashMap]
+           [org.apache.hadoop.mapreduce Job]))
+
+(def ^:private ^WeakHashMap cache
+  "Weak map from task configuration object to atom of map from cache key to
+delayed cached value."
+  (WeakHashMap.))
+
+(defn ^:private task-conf?
+  "True iff `conf` is the configuration of a running task attempt, which
+remains fixed for the life of the task."
+  [conf]
+  (some? (or (conf/get conf "mapreduce.task.attempt.id" nil)
+             (conf/get conf "mapred.task.id" nil))))
+
+(defn cached
+  "Value for `key` cached against the task configuration object of `conf`,
+computing it as `(f)` if not yet cached.  Each value is computed at most once
+per task configuration object, and must not be modified by callers.  Computes a
+fresh value on every call outside of tasks, where configurations may yet change
+between uses."
+  [conf key f]
+  (if-not (task-conf? conf)
+    (f)
+    (let [base (conf/ig conf)
+          values (locking cache
+                   (or (.get cache base)
+                       (let [values (atom {})]
+                         (.put cache base values)
+                         values)))]
+      @(or (get @values key)
+           (-> values
+               (swap! #(if (contains? % key) % (assoc % key (delay (f)))))
+               (get key))))))
+
+(defn job
+  "Job for configuration diff `subconf` merged into a copy of `conf`, cached
+read-only per task as per `cached`.  Callers must pass a private copy, as via
+`mr/job`, to any code which may modify its configuration."
+  {:tag `Job}
+  [conf subconf]
+  (cached conf [::job subconf] #(doto (mr/job conf) (conf/merge! subconf))))
@@ -0,0 +1,123 @@
+(ns parkour.skew
+  "Skew-aware partitioning, spreading heavy-hitter keys across reducers."
+  (:require [clojure.core.reducers :as r]
+            [clojure.tools.logging :as log]
+            [parkour (conf :as conf) (mapreduce :as mr) (graph :as pg)
+             ,       (toolbox :as ptb)]
+            [parkour.io (sample :as sample)]
+            [parkour.util :refer [ruquot]])
+  (:import [java.util.concurrent.atomic AtomicLong]
+           [org.apache.hadoop.mapreduce Counter TaskInputOutputContext]))
+
+(def ^:private ^:const counter-group
+  "Skew Partitioning")
+
+(def ^:private defaults
+  "Default values for heavy-hitter sampling options."
+  {:size 131072,
+   :splits 5,
+   :seed 1,
+   :min-fanout 2,
+   :max-keys 1024,
+   })
+
+(defn ^:private key-counts
+  "Map of each key in `coll` to the number of times it occurs."
+  [coll]
+  (persistent!
+   (reduce (fn [m k] (assoc! m k (inc (get m k 0))))
+           (transient {}) coll)))
+
+(defn heavy-hitters
+  "Map of heavy-hitter map-output keys to reducer fan-outs, as estimated by
+sampling the input `dseq`.  The function `f` is applied to the sampled input
+collection and should return a reducible collection of the map-output keys the
+mapper would produce for it.  Each key's fan-out is the number of reducers
+required to bring its share of the sample down to that of an average reducer.
+Available `options` are:
+  `:reducers` -- Number of reducers (default from `mapred.reduce.tasks`);
+  `:min-fanout` -- Minimum fan-out for a key to be heavy (default 2);
+  `:max-keys` -- Maximum number of heavy-hitters to report (default 1024);
+  `:size`, `:splits`, `:seed` -- Sampling options, as per `sample/dseq`."
+  ([f dseq] (heavy-hitters {} f dseq))
+  ([options f dseq]
+     (let [{:keys [reducers min-fanout max-keys], :as options}
+           , (merge defaults options)
+           nparts (or reducers (conf/get-int (conf/ig) "mapred.reduce.tasks" 1))
+           sopts (select-keys options [:size :splits :seed])
+           counts (->> dseq (sample/dseq sopts) f key-counts)
+           total (reduce + 0 (vals counts))]
+       (if (zero? total)
+         {}
+         (let [hot (->> counts
+                        (r/map (fn [[k n]]
+                                 [k (min nparts (ruquot (* n nparts) total))]))
+                        (r/filter (fn [[_ fanout]] (>= fanout min-fanout)))
+                        (into [])
+                        (sort-by second >)
+                        (take max-keys)
+                        (into {}))]
+           (log/infof "heavy-hitters: sampled=%d, keys=%d, fanouts=%s"
+                      total (count hot) (pr-str (vals hot)))
+           hot)))))
+
+(defn ^:private report-fanouts!
+  "Report the count, total fan-out, and maximum fan-out of the heavy-hitters in
+`hot` via `context` counters.  Only the first map task reports, so that totals
+reflect the chosen fan-outs."
+  [^TaskInputOutputContext context hot]
+  (when (-> context .getTaskAttemptID .getTaskID .getId zero?)
+    (let [fanouts (map long (vals hot))
+          report (fn [^String n ^long x]
+                   (.increment (.getCounter context counter-group n) x))]
+      (report "heavy-hitter keys" (count hot))
+      (report "fan-out total" (reduce + 0 fanouts))
+      (report "fan-out max" (reduce max 0 fanouts)))))
+
+(defn ^:private tuple-reporter
+  "Function of each partitioned tuple key, reporting the heavy-hitter fan-outs
+of `hot` on first call and counting tuples for heavy-hitter keys.  Counters are
+resolved on first use, within the task context, and reported via a fixed set of
+counter names independent of the number of heavy-hitters."
+  [hot]
+  (let [counter (delay
+                 (when-let [context mr/*context*]
+                   (report-fanouts! context hot)
+                   (.getCounter ^TaskInputOutputContext context
+                                counter-group "heavy-hitter tuples")))]
+    (fn [heavy?]
+      (when-let [^Counter c @counter]
+        (when heavy? (.increment c 1))))))
+
+(defn skew-p
+  "Partitioner which spreads each heavy-hitter key of `hot` -- a map of keys to
+fan-outs, as per `heavy-hitters` -- round-robin across that many consecutive
+partitions, and hash-partitions all other keys.  When provided, the function `f`
+is applied to each tuple key to produce the value looked up and hashed, as per
+`toolbox/by-p`.  Reducer results for heavy-hitter keys are partial, and should
+be combined via e.g. `merge-partials`."
+  {::mr/adapter mr/partfn}
+  ([conf hot] (skew-p conf hot identity))
+  ([conf hot f]
+     (let [salt (AtomicLong.), report (tuple-reporter hot)]
+       (fn ^long [k _ ^long nparts]
+         (let [o (f k), fanout (get hot o)]
+           (report (some? fanout))
+           (if (nil? fanout)
+             (-> o hash (mod nparts))
+             (let [i (mod (.getAndIncrement salt) (long fanout))]
+               (-> o hash (+ i) (mod nparts)))))))))
+
+(defn merge-partials
+  "Return a job node merging the partial per-key results read from the
+key/value tuples of `node` by reducing each key's values with the associative
+function var `fv`.  Uses the map-output key & value `classes` as per
+`graph/partition`.  The result still requires an output via `graph/output`.
+Costs a full second shuffle of every tuple of `node`, not only those for
+heavy-hitter keys; when few keys are heavy, prefer merging their partial results
+in the consumer of `node` instead."
+  [node classes fv]
+  (-> (pg/input node)
+      (pg/map #'ptb/identity-t :keyvals :keyvals)
+      (pg/partition classes)
+      (pg/combine #'ptb/keyvalgroups-r fv)))
@@ -1,17 +1,19 @@
 (ns parkour.toolbox
   "Utility collection of common task functions."
   (:require [clojure.core.reducers :as r]
-            [parkour (reducers :as pr) (wrapper :as w) (mapreduce :as mr)]
-            [parkour.io (dseq :as dseq)])
-  (:import [org.apache.hadoop.mapreduce Job InputFormat]))
+            [parkour (reducers :as pr) (mapreduce :as mr)]
+            [parkour.io (dseq :as dseq) (splits :as splits)])
+  (:import [org.apache.hadoop.mapreduce Job]))
 
 (defn bound-reducers-splits
   "Convenience cstep for potentially small jobs, bounding the configured number
-of reducers to be no greater than the number of input splits."
+of reducers to be no greater than the number of input splits.  Enables split
+caching for the job, so the splits computed here are reused by Parkour input
+formats at submission; Hadoop lists splits again for other input formats."
   [^Job job]
+  (splits/cache-splits job)
   (let [n (.getNumReduceTasks job)
-        ifi (w/new-instance job (dseq/input-format job))
-        n' (count (.getSplits ^InputFormat ifi job))]
+        n' (count (splits/input-splits job (dseq/input-format job)))]
     (.setNumReduceTasks job (min n n'))))
 
 (defn by-p
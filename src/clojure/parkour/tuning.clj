@@ -0,0 +1,193 @@
+(ns parkour.tuning
+  "History-driven sizing of job reducer counts and input splits."
+  (:require [clojure.string :as str]
+            [clojure.tools.logging :as log]
+            [parkour (conf :as conf) (fs :as fs) (mapreduce :as mr)]
+            [parkour.io (dseq :as dseq)]
+            [parkour.util :as util :refer [ignore-errors]])
+  (:import [java.net URLEncoder]
+           [java.util Map$Entry UUID]
+           [org.apache.hadoop.fs FileSystem Path]
+           [org.apache.hadoop.mapreduce Job]
+           [org.apache.hadoop.mapreduce.lib.input FileInputFormat]))
+
+(def ^:private ^:const store-key
+  "Configuration key for the job statistics store directory path."
+  "parkour.tuning.store")
+
+(def ^:private ^:const input-bytes-key
+  "Configuration key recording the input size of an adaptively-sized job."
+  "parkour.tuning.input.bytes")
+
+(def ^:private ^:const key-key
+  "Configuration key recording the history key of an adaptively-sized job."
+  "parkour.tuning.key")
+
+(def ^:private ^:const history-size
+  "Maximum number of runs retained in each job's statistics history."
+  5)
+
+(def ^:private defaults
+  "Default values for the tuning configuration parameters."
+  {"parkour.tuning.reducer.bytes" (* 1024 1024 1024),
+   "parkour.tuning.reducer.max" 999,
+   "parkour.tuning.task.millis" (* 5 60 1000),
+   "parkour.tuning.split.min" (* 16 1024 1024),
+   "parkour.tuning.split.max" (* 4 1024 1024 1024),
+   })
+
+(defn ^:private get-param
+  "Value of tuning parameter `key` in `conf`."
+  ^long [conf key] (conf/get-long conf key (get defaults key)))
+
+(def ^:private step-var-re
+  "Regular expression matching configuration keys for task function vars."
+  #"^parkour\.(?:mapper|combiner|reducer|partitioner)\.(?:.*\.)?var$")
+
+(defn job-key
+  "History key identifying the job node configured by `job`, independent of its
+position in and the shape of its job graph: the job graph name, without any
+`[i/n]` job position suffix, and a digest of the task function vars configured
+so far.  Jobs configuring no task function vars share a key per graph name."
+  [^Job job]
+  (let [base (str/replace (str (.getJobName job)) #"\[\d+/\d+\]$" "")
+        vars (->> (conf/ig job)
+                  (keep (fn [^Map$Entry e]
+                          (when (re-matches step-var-re (.getKey e))
+                            (str (.getKey e) "=" (.getValue e)))))
+                  (sort)
+                  (str/join ","))]
+    (format "%s-%08x" base (.hashCode ^String vars))))
+
+(defn ^:private history-path
+  "Directory in the statistics store of `conf` holding the history of the job
+with history key `key`, or `nil` if no store is configured."
+  [conf key]
+  (when-let [store (conf/get conf store-key nil)]
+    (fs/path store (URLEncoder/encode (str key) "UTF-8"))))
+
+(defn ^:private run-paths
+  "Paths of the per-run statistics files under `dir`, oldest first."
+  [conf dir]
+  (let [fs (fs/path-fs conf dir)]
+    (when (fs/path-exists? fs dir)
+      (->> (fs/path-list fs dir)
+           (remove fs/hidden?)
+           (sort-by #(.getName ^Path %))))))
+
+(defn history
+  "Vector of statistics maps for the previous runs of the job with history key
+`key` (see `job-key`), most recent last, as held in the `parkour.tuning.store`
+of `conf`."
+  [conf key]
+  (if-let [dir (history-path conf key)]
+    (->> (run-paths conf dir)
+         (take-last history-size)
+         (keep #(ignore-errors (util/edn-slurp %)))
+         (vec))
+    []))
+
+(defn ^:private input-bytes
+  "Total size in bytes of the input paths of `job`, or `nil` if the input paths
+of `job` are unknown."
+  [^Job job]
+  (some->> (dseq/input-paths job)
+           (seq)
+           (mapcat (fn [p]
+                     (let [fs (fs/path-fs job p)]
+                       (map vector (repeat fs) (fs/path-glob fs p)))))
+           (map (fn [[^FileSystem fs ^Path p]]
+                  (-> fs (.getContentSummary p) .getLength)))
+           (reduce + 0)))
+
+(defn ^:private job-stats
+  "Statistics map for completed job `job`, or `nil` if the job lacks the
+necessary counters."
+  [^Job job]
+  (let [counters (->> (.getCounters job) mr/counters-map vals (apply merge))
+        input (conf/get-long job input-bytes-key -1)
+        output (get counters "MAP_OUTPUT_BYTES")
+        millis (or (get counters "MILLIS_MAPS")
+                   (get counters "SLOTS_MILLIS_MAPS"))]
+    (when (pos? input)
+      (cond-> {:input-bytes input, :time (System/currentTimeMillis)}
+        output (assoc :map-output-bytes output)
+        millis (assoc :map-millis millis)))))
+
+(defn ^:internal record!
+  "Add the statistics of successfully-completed `job` to its history in the
+configured statistics store, if both the store and the job's adaptive sizing
+are configured.  Writes each run to a new file, so that concurrent runs do not
+lose each other's statistics, then prunes all but the most recent runs."
+  [^Job job]
+  (when-let [key (conf/get job key-key nil)]
+    (when-let [dir (history-path job key)]
+      (try
+        (when-let [stats (job-stats job)]
+          (let [name (format "%013d-%s.edn" (:time stats) (UUID/randomUUID))]
+            (util/edn-spit (fs/path dir name) stats))
+          (let [fs (fs/path-fs job dir), runs (run-paths job dir)]
+            (doseq [p (drop-last history-size runs)]
+              (ignore-errors (fs/path-delete fs p)))))
+        (catch Exception e
+          (log/warn e "Unable to record statistics for job"
+                    (.getJobName job)))))))
+
+(defn ^:private ratio
+  "Ratio of the sums of `k1` to `k0` across the statistics maps `runs` which
+have both, or `nil` if none do."
+  [k1 k0 runs]
+  (let [runs (filter #(and (get % k0) (get % k1) (pos? (get % k0))) runs)]
+    (when (seq runs)
+      (/ (double (reduce + (map k1 runs)))
+         (double (reduce + (map k0 runs)))))))
+
+(defn ^:private clamp
+  "Value `x` clamped to the range [`lo`, `hi`]."
+  ^long [^long lo ^long hi ^long x] (-> x (max lo) (min hi)))
+
+(defn adaptive-sizing
+  "Cstep sizing the reducer count and input splits of `job` from the job's
+input size and the statistics of previous runs of the same job node, as
+identified by `job-key`.  Sets the number of reducers (if non-zero) to yield
+approximately `parkour.tuning.reducer.bytes` map-output bytes per reducer
+(default 1GiB; at most `parkour.tuning.reducer.max`, default 999), estimating
+map output size as equal to input size when there is no history.  When there is
+history, also sizes file input splits to take approximately
+`parkour.tuning.task.millis` per map task (default 5 minutes), bounded by
+`parkour.tuning.split.min` and `parkour.tuning.split.max`.  History is read from
+and, upon successful job graph execution, recorded to the directory at
+`parkour.tuning.store` on any Hadoop filesystem.  Leaves `job` unchanged when no
+store is configured."
+  [^Job job]
+  (let [input (input-bytes job)]
+    (cond
+      (nil? (conf/get job store-key nil))
+      , job
+
+      (nil? input)
+      , (do (log/warn "Unknown input size; not sizing job" (.getJobName job))
+            job)
+
+      :else
+      , (let [key (job-key job), runs (history job key)
+              out-ratio (or (ratio :map-output-bytes :input-bytes runs) 1.0)
+              ms-per-byte (ratio :map-millis :input-bytes runs)]
+          (conf/assoc! job input-bytes-key input, key-key key)
+          (when (pos? (.getNumReduceTasks job))
+            (let [per (get-param job "parkour.tuning.reducer.bytes")
+                  most (get-param job "parkour.tuning.reducer.max")
+                  bytes (* (double out-ratio) (long input))
+                  n (clamp 1 most (long (Math/ceil (/ bytes per))))]
+              (log/info "Sizing job" (.getJobName job) "to" n "reducers")
+              (.setNumReduceTasks job n)))
+          (when (and ms-per-byte (pos? ms-per-byte))
+            (let [size (->> (/ (get-param job "parkour.tuning.task.millis")
+                               (double ms-per-byte))
+                            (long)
+                            (clamp (get-param job "parkour.tuning.split.min")
+                                   (get-param job "parkour.tuning.split.max")))]
+              (log/info "Sizing job" (.getJobName job) "to" size "byte splits")
+              (FileInputFormat/setMinInputSplitSize job size)
+              (FileInputFormat/setMaxInputSplitSize job size)))
+          job))))
@@ -0,0 +1,42 @@
+package parkour.hadoop;
+
+import clojure.lang.RT;
+import clojure.lang.Symbol;
+import clojure.lang.Var;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+public class Columnar {
+  private static class Vars {
+    private static final String NS = "parkour.remote.columnar";
+    private static final Var inputFormat = RT.var(NS, "input-format");
+    private static final Var recordWriter = RT.var(NS, "record-writer");
+    static {
+      RT.var("clojure.core", "require").invoke(Symbol.intern(NS));
+    }
+  }
+
+  public static class InputFormat<K, V> extends ProxyInputFormat<K, V> {
+    @SuppressWarnings("unchecked")
+    public InputFormat() {
+      super((IInputFormat) Vars.inputFormat.invoke());
+    }
+  }
+
+  public static class OutputFormat<K, V> extends FileOutputFormat<K, V> {
+    @Override
+    @SuppressWarnings("unchecked")
+    public org.apache.hadoop.mapreduce.RecordWriter<K, V>
+        getRecordWriter(TaskAttemptContext context) {
+      return (org.apache.hadoop.mapreduce.RecordWriter<K, V>)
+        Vars.recordWriter.invoke(this, context);
+    }
+  }
+
+  public static class RecordWriter<K, V> extends ProxyRecordWriter<K, V> {
+    public RecordWriter(IRecordWriter<K, V> irw) {
+      super(irw);
+    }
+  }
+}
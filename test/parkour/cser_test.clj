@@ -30,3 +30,14 @@
          java.lang.String)
     (let [re #"regular"]
       (is (= (str re) (str (roundtrip-raw re)))))))
+
+(deftest test-cser-offload
+  (th/with-config
+    (let [conf (doto (conf/clone (conf/ig))
+                 (conf/assoc! "parkour.cser.offload.threshold" 64))
+          x (vec (range 100))]
+      (cser/assoc! conf conf-key x)
+      (is (.startsWith ^String (conf/get conf conf-key) "#parkour/cfile "))
+      (is (= x (cser/get conf conf-key)))
+      (cser/assoc! conf conf-key (range 10))
+      (is (= (range 10) (read-string (conf/get conf conf-key)))))))
@@ -7,6 +7,7 @@
                      (conf :as conf) (fs :as fs) (wrapper :as w)]
             [parkour.io (text :as text) (seqf :as seqf) (avro :as mra)
                         (dux :as dux) (dsink :as dsink) (mem :as mem)]
+            [parkour.graph.timeline :as tl]
             [parkour.util :refer [ignore-errors returning]]
             [parkour.test-helpers :as th])
   (:import [org.apache.hadoop.io Text LongWritable]))
@@ -191,6 +192,27 @@
         [result] (word-count (th/config) dseq dsink)]
     (is (= nil result))))
 
+(deftest test-timeline
+  (let [inpath (io/resource "word-count-input.txt")
+        outpath (doto (fs/path "tmp/word-count-output") fs/path-delete)
+        tracepath (doto (fs/path "tmp/word-count-trace.json") fs/path-delete)
+        dseq (text/dseq inpath)
+        dsink (seqf/dsink [Text LongWritable] outpath)
+        [result] (word-count (th/config) dseq dsink)
+        {:keys [nodes critical-path], :as report} (pg/timeline result)
+        [node] nodes]
+    (is (= 1 (count nodes)))
+    (is (= :succeeded (:status node)))
+    (is (<= (:ready node) (:submit node) (:complete node)))
+    (is (= [(:jid node)] (:jids critical-path)))
+    (is (= 6 (get-in (:counters node) ["word-count" "words"])))
+    (tl/spit-trace tracepath report)
+    (is (.startsWith ^String (slurp tracepath) "{\"traceEvents\":["))
+    (tl/spit-trace tracepath {:start 0, :nodes [{:jid 0, :jname "nan",
+                                                 :submit 0, :complete 1,
+                                                 :counters {"x" Double/NaN}}]})
+    (is (re-find #"\"x\":null" (slurp tracepath)))))
+
 (defn bad-mapper
   [input] (throw (ex-info "Exception expected" {:from-task? true})))
 
@@ -73,6 +73,49 @@
     (let [f (->> p fs/path-list (remove fs/hidden?) first io/file)]
       (is (= records (->> p (mra/dseq [:default]) (into [])))))))
 
+(def wide-schema
+  (avro/parse-schema
+   {:type :record, :name "Wide",
+    :fields [{:name "id", :type :long}
+             {:name "name", :type :string}
+             {:name "tags", :type {:type :array, :items :string}}
+             {:name "note", :type [:null :string]}
+             {:name "point",
+              :type {:type :record, :name "Point",
+                     :fields [{:name "x", :type :double}
+                              {:name "y", :type :double}]}}]}))
+
+(deftest test-view-input
+  (let [p (doto (fs/path "tmp/avro-view") fs/path-delete)
+        records (mapv (fn [i]
+                        {:id i, :name (str "r" i), :tags (mapv str (range i)),
+                         :note (when (odd? i) "odd"),
+                         :point {:x (double i), :y (- (double i))}})
+                      (range 20))
+        _ (dsink/with-dseq (mra/dsink [wide-schema] p) records)
+        views (->> p (mra/dseq [:view]) (into []))
+        view (nth views 3), record (nth records 3)]
+    (is (= records (->> p (mra/dseq [:default]) (into [])) views))
+    (is (= 3 (:id view) (get view :id) (view :id)))
+    (is (= "odd" (:note view)))
+    (is (= ::none (get view :missing ::none)))
+    (is (= (count record) (count view)))
+    (is (= (assoc record :id -1) (assoc view :id -1)))
+    (is (= (dissoc record :tags) (dissoc view :tags)))
+    (is (= (hash record) (hash view)))
+    (let [mview (with-meta view {:m 1})]
+      (is (= {:m 1} (meta mview) (meta (assoc mview :id -1))))
+      (is (= (class view) (class mview)))
+      (is (= record mview)))))
+
+(deftest test-view-input-tuples
+  (let [p (doto (fs/path "tmp/avro-view-tuples") fs/path-delete)
+        schema (avro/tuple-schema [:string :long])
+        records [["a" 1] ["b" 2]]
+        _ (dsink/with-dseq (mra/dsink [schema] p) records)]
+    (is (= records (->> p (mra/dseq [:view]) (into []))))
+    (is (every? vector? (->> p (mra/dseq [:view]) (into []))))))
+
 (defn ->keys
   {::mr/source-as :keyvals, ::mr/sink-as :keys}
   [coll] coll)
@@ -0,0 +1,57 @@
+(ns parkour.io.columnar-test
+  (:require [clojure.test :refer :all]
+            [parkour (conf :as conf) (fs :as fs) (cstep :as cstep)
+             ,       (mapreduce :as mr) (graph :as pg)]
+            [parkour.io (dsink :as dsink) (columnar :as col) (splits :as splits)]
+            [parkour.test-helpers :as th]))
+
+(use-fixtures :once th/config-fixture)
+
+(def records
+  (vec (for [i (range 100)]
+         (cond-> {:id i, :even (even? i)}
+           (not= 50 i) (assoc :name (str "n" i))))))
+
+(defn write-records
+  []
+  (let [p (doto (fs/path "tmp/columnar") fs/path-delete)]
+    (dsink/with-dseq (col/dsink {:block-rows 10} p) records)
+    p))
+
+(defn nsplits
+  [dseq]
+  (let [job (doto (mr/job) (conf/assoc! "parkour.columnar.split.bytes" 1))]
+    (count (splits/input-splits (cstep/apply! job [dseq])))))
+
+(deftest test-columnar
+  (let [p (write-records)]
+    (is (= records (into [] (col/dseq {} p))))
+    (is (= (map #(select-keys % [:id]) records)
+           (into [] (col/dseq {:columns [:id]} p))))
+    (is (= (range 20 30)
+           (->> (col/dseq {:columns [:id], :where [:between :id 20 29]} p)
+                (into []) (map :id))))
+    (is (= [0 1 2 3 4 99]
+           (->> (col/dseq {:where [:or [:< :id 5] [:= :name "n99"]]} p)
+                (into []) (map :id))))
+    (is (= [50] (->> (col/dseq {:where [:not [:> :name ""]]} p)
+                     (into []) (map :id))))
+    (is (= 10 (nsplits (col/dseq {} p))))
+    (is (= 1 (nsplits (col/dseq {:where [:between :id 20 29]} p))))
+    (is (= 2 (nsplits (col/dseq {:where [:in :id #{5 95}]} p))))
+    (is (= 0 (nsplits (col/dseq {:where [:> :id 1000]} p))))
+    (doseq [where [[:like :id 1] [:= :id] [:between :id 1] [:in :id 5]
+                   [:not [:= :id 1] [:= :id 2]] [:and [:< :id]]]]
+      (is (thrown? clojure.lang.ExceptionInfo (col/dseq {:where where} p))))))
+
+(defn add-square
+  [input] (map #(assoc % :square (* (:id %) (:id %))) input))
+
+(deftest test-columnar-job
+  (let [p (write-records)
+        out (-> (pg/input (col/dseq {:columns [:id], :where [:< :id 5]} p))
+                (pg/map #'add-square)
+                (pg/output (col/dsink))
+                (pg/fexecute (th/config) "columnar-test"))]
+    (is (= (map (fn [i] {:id i, :square (* i i)}) (range 5))
+           (->> out (into []) (sort-by :id))))))
@@ -0,0 +1,68 @@
+(ns parkour.io.gztext-test
+  (:require [clojure.test :refer :all]
+            [clojure.java.io :as io]
+            [clojure.string :as str]
+            [parkour (conf :as conf) (fs :as fs) (cstep :as cstep)
+             ,       (mapreduce :as mr) (graph :as pg)]
+            [parkour.io (gztext :as gztext) (text :as text) (splits :as splits)]
+            [parkour.test-helpers :as th])
+  (:import [java.util.zip GZIPOutputStream]))
+
+(use-fixtures :once th/config-fixture)
+
+(def lines
+  (-> (mapv #(str "line " %) (range 1000))
+      (assoc 500 (apply str (repeat 300 "x")))))
+
+(defn write-members
+  "Write `lines` to gzip file `p` as one gzip member per `n` characters."
+  [p n]
+  (let [p (doto (fs/path p) fs/path-delete)
+        text (str (str/join "\n" lines) "\n")]
+    (fs/path-delete (gztext/index-path p))
+    (with-open [out (io/output-stream p)]
+      (doseq [chunk (map (partial apply str) (partition-all n text))]
+        (doto (GZIPOutputStream. out)
+          (.write (.getBytes ^String chunk "UTF-8"))
+          (.finish))))
+    p))
+
+(defn split-conf
+  [] (doto (th/config) (conf/assoc! "parkour.gztext.split.bytes" 1)))
+
+(defn nsplits
+  [dseq]
+  (let [job (mr/job (split-conf))]
+    (count (splits/input-splits (cstep/apply! job [dseq])))))
+
+(deftest test-gztext
+  (let [p (write-members "tmp/gztext/members.gz" 97)]
+    (is (= lines (into [] (gztext/dseq p))))
+    (is (= 1 (nsplits (gztext/dseq p))))
+    (let [{:keys [members]} (gztext/index! p)]
+      (is (< 1 (count (filter #(nth % 3) members)) (count members)))
+      (is (= (count (filter #(nth % 3) members))
+             (nsplits (gztext/dseq p)))))
+    (is (= lines (conf/with-default (split-conf)
+                   (into [] (gztext/dseq p)))))))
+
+(defn count-mapper
+  [input] [["lines" (reduce (fn [n _] (inc n)) 0 input)]])
+
+(deftest test-gztext-reblock
+  (let [p (write-members "tmp/gztext/single.gz" Integer/MAX_VALUE)
+        q (doto (fs/path "tmp/gztext/reblocked.gz") fs/path-delete)
+        conf (doto (th/config) (conf/assoc! "parkour.gztext.block.bytes" 100))
+        {:keys [members]} (gztext/reblock! conf p q)]
+    (is (< 1 (count members)))
+    (is (every? #(= 0 (nth % 3)) members))
+    (is (= lines (conf/with-default (split-conf)
+                   (into [] (gztext/dseq q)))))
+    (is (= (count lines)
+           (->> (-> (pg/input (gztext/dseq q))
+                    (pg/map #'count-mapper)
+                    (pg/output (text/dsink))
+                    (pg/fexecute (split-conf) "test-gztext-reblock"))
+                (into [])
+                (map #(Long/parseLong (second (str/split % #"\t"))))
+                (reduce +))))))
@@ -0,0 +1,74 @@
+(ns parkour.io.mjoin-test
+  (:require [clojure.test :refer :all]
+            [parkour (fs :as fs) (mapreduce :as mr) (graph :as pg)]
+            [parkour.io (dsink :as dsink) (seqf :as seqf) (avro :as mra)
+             ,          (mjoin :as mjoin)]
+            [parkour.test-helpers :as th])
+  (:import [org.apache.hadoop.io Text LongWritable]
+           [org.apache.hadoop.mapreduce.lib.partition HashPartitioner]))
+
+(use-fixtures :once th/config-fixture)
+
+(defn write-seqf
+  [p records]
+  (let [p (doto (fs/path p) fs/path-delete)]
+    (dsink/with-dseq (seqf/dsink [Text LongWritable] p) records)))
+
+(def left
+  [["a" 1] ["b" 2] ["c" 3]])
+
+(def right
+  [["a" 10] ["a" 11] ["c" 30] ["d" 40]])
+
+(defn pair-mapper
+  [input]
+  (map (fn [[k [ls rs]]] [k (reduce + (concat ls rs))]) input))
+
+(deftest test-mjoin
+  (let [l (write-seqf "tmp/mjoin/left" left)
+        r (write-seqf "tmp/mjoin/right" right)]
+    (is (= [["a" [[1] [10 11]]] ["c" [[3] [30]]]]
+           (into [] (mjoin/dseq {} l r))))
+    (is (= [["a" [[1] [10 11]]] ["b" [[2] []]] ["c" [[3] [30]]] ["d" [[] [40]]]]
+           (into [] (mjoin/dseq {:outer? true} l r))))
+    (is (= [["a" [[1] [10 11]]] ["c" [[3] [30]]]]
+           (into [] (mjoin/dseq {:partitioner HashPartitioner} l r))))
+    (is (= [["a" 22] ["c" 33]]
+           (->> (-> (pg/input (mjoin/dseq {} l r))
+                    (pg/map #'pair-mapper)
+                    (pg/output (seqf/dsink [Text LongWritable]))
+                    (pg/fexecute (th/config) "mjoin-test"))
+                (into [])
+                (sort-by first))))))
+
+(defn write-avro
+  [p records]
+  (let [p (doto (fs/path p) fs/path-delete)]
+    (dsink/with-dseq (mra/dsink [:string :long] p) records)
+    (mra/dseq [:default :default] p)))
+
+(deftest test-mjoin-comparators
+  (let [l (write-avro "tmp/mjoin/avro-left" left)
+        r (write-avro "tmp/mjoin/avro-right" right)]
+    (is (= [["a" [[1] [10 11]]] ["c" [[3] [30]]]]
+           (into [] (mjoin/dseq {} l r)))))
+  (let [l (write-seqf "tmp/mjoin/left" left)
+        r (write-seqf "tmp/mjoin/right" right)]
+    (is (= [["a" [[1] [10 11]]] ["c" [[3] [30]]]]
+           (into [] (mjoin/dseq {:comparator #'compare} l r))))))
+
+(deftest test-mjoin-incompatible
+  (let [l (write-seqf "tmp/mjoin/left" left)
+        r (write-seqf "tmp/mjoin/right" right)
+        [part] (fs/path-glob "tmp/mjoin/right/part-*")
+        fs (fs/path-fs part)]
+    (.rename fs part (fs/path "tmp/mjoin/right/part-r-00007"))
+    (is (thrown? clojure.lang.ExceptionInfo
+                 (into [] (mjoin/dseq {} l r))))
+    (is (thrown? clojure.lang.ExceptionInfo
+                 (into [] (mjoin/dseq {} l))))
+    (doseq [p ["tmp/mjoin/left" "tmp/mjoin/right"]
+            :let [[part] (fs/path-glob (str p "/part-*"))]]
+      (.rename fs part (fs/path p "part-r-00001")))
+    (is (thrown? clojure.lang.ExceptionInfo
+                 (into [] (mjoin/dseq {} l r))))))
@@ -0,0 +1,36 @@
+(ns parkour.io.splits-test
+  (:require [clojure.test :refer :all]
+            [parkour (fs :as fs) (cstep :as cstep) (mapreduce :as mr)]
+            [parkour.io (text :as text) (splits :as splits)]
+            [parkour.test-helpers :as th])
+  (:import [org.apache.hadoop.mapreduce.lib.input TextInputFormat]))
+
+(use-fixtures :once th/config-fixture)
+
+(defn write-inputs
+  [p n]
+  (fs/path-delete p)
+  (doseq [i (range n)]
+    (spit (fs/path p (format "part-%05d.txt" i)) (str i "\n"))))
+
+(defn text-job
+  [& paths] (cstep/apply! (mr/job) [(apply text/dseq paths)]))
+
+(deftest test-parallel-splits
+  (let [p (fs/path "tmp/splits/parallel")
+        _ (write-inputs p 40)
+        paths (->> (range 40) (map #(fs/path p (format "part-%05d.txt" %))))
+        job (apply text-job paths)
+        expected (map str (.getSplits (TextInputFormat.) job))]
+    (is (= 40 (count expected)))
+    (is (= expected (map str (splits/input-splits job))))))
+
+(deftest test-cached-splits
+  (let [p (fs/path "tmp/splits/cached")
+        _ (write-inputs p 2)
+        job (text-job p)]
+    (splits/cache-splits job)
+    (is (= 2 (count (splits/input-splits job))))
+    (write-inputs p 3)
+    (is (= 2 (count (splits/input-splits (mr/job job)))))
+    (is (= 3 (count (splits/input-splits (text-job p)))))))
@@ -5,13 +5,16 @@
             [clojure.core.reducers :as r]
             [abracad.avro :as avro]
             [parkour (conf :as conf) (fs :as fs) (wrapper :as w)
-                     (mapreduce :as mr) (reducers :as pr)]
-            [parkour.io (dseq :as dseq) (mux :as mux) (avro :as mra)]
+                     (mapreduce :as mr) (reducers :as pr) (graph :as pg)
+                     (join :as join)]
+            [parkour.io (dseq :as dseq) (dsink :as dsink) (mux :as mux)
+                        (avro :as mra) (mem :as mem) (text :as text)]
             [parkour.util :refer [returning]]
             [parkour.test-helpers :as th])
   (:import [org.apache.hadoop.mapreduce.lib.input FileInputFormat]
            [org.apache.hadoop.mapreduce.lib.input TextInputFormat]
            [org.apache.hadoop.mapreduce.lib.output FileOutputFormat]
+           [org.apache.hadoop.util.bloom BloomFilter Key]
            [parkour.hadoop Mux$Mapper]))
 
 (use-fixtures :once th/config-fixture)
@@ -91,3 +94,79 @@
            (->> (mra/dseq [:default] outpath)
                 (into [])
                 sort)))))
+
+(deftest test-table
+  (let [f (doto (java.io.File/createTempFile "join-test-" ".table")
+            (.deleteOnExit))
+        table (join/open-table (join/write-table f [[0 "red"] [0 "blue"]
+                                                    [[1 :x] "green"]]))]
+    (is (= #{"red" "blue"} (set (join/get table 0))))
+    (is (= ["green"] (join/get table [1 :x])))
+    (is (= [] (join/get table 2)))
+    (is (join/contains? table 0))
+    (is (not (join/contains? table 2))))
+  (let [f (doto (java.io.File/createTempFile "join-test-" ".table")
+            (.deleteOnExit))
+        tuples (map #(vector (str "k" %) [% (str "v" %)]) (range 100))
+        table (join/open-table (join/write-table f (conj tuples [7 7])))]
+    (is (every? (fn [[k v]] (= [v] (join/get table k) (join/get table k)))
+                tuples))
+    (is (= [7] (join/get table 7) (join/get table (int 7))))
+    (is (= [] (join/get table "k100")))))
+
+(def large-tuples [[0 "foo"] [1 "bar"] [3 "quux"]])
+(def small-tuples [[0 "red"] [0 "blue"] [1 "green"]])
+
+(defn run-broadcast-join
+  [kind max-bytes large small]
+  (-> (join/join (conf/ig) kind large small max-bytes)
+      (pg/output (text/dsink))
+      (pg/fexecute (conf/ig) `run-broadcast-join)
+      (->> (into #{}))))
+
+(def expected-joins
+  {:inner #{"0\t[\"foo\" \"red\"]" "0\t[\"foo\" \"blue\"]"
+            "1\t[\"bar\" \"green\"]"}
+   :left-outer #{"0\t[\"foo\" \"red\"]" "0\t[\"foo\" \"blue\"]"
+                 "1\t[\"bar\" \"green\"]" "3\t[\"quux\" nil]"}
+   :semi #{"0\tfoo" "1\tbar"}})
+
+(deftest test-broadcast-join
+  (let [large (mem/dseq large-tuples), small (mem/dseq small-tuples)]
+    (doseq [[kind expected] expected-joins
+            max-bytes [:always 1024]]
+      (is (= expected (run-broadcast-join kind max-bytes large small))))))
+
+(deftest test-shuffle-join
+  (let [dsink #(mra/dsink [:long :string] (doto (fs/path %) fs/path-delete))
+        large (dsink/with-dseq (dsink "tmp/join-large") large-tuples)
+        small (dsink/with-dseq (dsink "tmp/join-small") small-tuples)]
+    (doseq [[kind expected] expected-joins
+            max-bytes [0 Long/MAX_VALUE]]
+      (is (= expected (run-broadcast-join kind max-bytes large small))))
+    (is (thrown? clojure.lang.ExceptionInfo
+                 (join/join (conf/ig) :outer large small)))))
+
+(deftest test-bloom-dval
+  (let [bloom @(join/bloom-dval #'pr/nth0 (map #(-> [% nil]) (range 100)))]
+    (is (every? #(.membershipTest ^BloomFilter bloom
+                                  (Key. (.getBytes (pr-str %) "UTF-8")))
+                (range 100))))
+  (is (thrown? clojure.lang.ExceptionInfo
+               (join/bloom-dval {:expected 1e10} #'pr/nth0 []))))
+
+(defn tagged-m
+  {::mr/source-as :keyvals}
+  [coll] (r/map (fn [[k v]] [[k 0] v]) coll))
+
+(deftest test-prefilter
+  (let [small (mem/dseq [[0 "red"] [1 "green"]])
+        large (mem/dseq (map #(-> [% (str "v" %)]) (range 100)))
+        bloom (join/bloom-dval {:fpp 0.0001} #'pr/nth0 small)
+        [result] (-> (pg/input large)
+                     (join/prefilter bloom #'ffirst #'tagged-m)
+                     (pg/output (text/dsink))
+                     (pg/execute (conf/ig) `test-prefilter))]
+    (is (every? (into #{} result) ["[0 0]\tv0" "[1 0]\tv1"]))
+    (is (< 90 (-> result mr/counters-map
+                  (get-in ["Bloom Filter Join" "filtered tuples"]))))))
@@ -0,0 +1,92 @@
+(ns parkour.mapreduce.sink-test
+  (:require [clojure.test :refer :all]
+            [parkour (conf :as conf) (mapreduce :as mr) (graph :as pg)]
+            [parkour.mapreduce (sink :as snk)]
+            [parkour.io (dsink :as dsink) (seqf :as seqf)]
+            [parkour.test-helpers :as th]
+            [pjstadig.scopes :as s])
+  (:import [java.io Closeable]
+           [org.apache.hadoop.io Text LongWritable]))
+
+(use-fixtures :once th/config-fixture)
+
+(defn collecting-sink
+  "Tuple sink collecting emitted tuples into atom `tuples`, throwing on emitting
+the key `:fail`."
+  [tuples]
+  (reify
+    snk/TupleSink
+    (-key-class [_] Object)
+    (-val-class [_] Object)
+    (-emit-keyval [_ key val]
+      (if (= :fail key)
+        (throw (ex-info "Expected failure" {}))
+        (swap! tuples conj [(str key) val])))
+    (-close [_] (swap! tuples conj :closed))))
+
+(deftest test-async-sink
+  (let [tuples (atom []), text (Text.)]
+    (with-open [^Closeable sink (mr/async-sink (collecting-sink tuples))]
+      (doseq [s ["foo" "bar" "baz"]]
+        (.set text ^String s)
+        (snk/emit-keyval sink text 1)))
+    (is (= [["foo" 1] ["bar" 1] ["baz" 1] :closed] @tuples)))
+  (let [tuples (atom [])]
+    (is (thrown? clojure.lang.ExceptionInfo
+                 (with-open [^Closeable sink (mr/async-sink
+                                              (collecting-sink tuples))]
+                   (snk/emit-keyval sink :fail 1))))
+    (is (= [:closed] @tuples))))
+
+(def ^:dynamic *marker* nil)
+
+(deftest test-async-sink-writer
+  (let [seen (atom [])
+        sink #(reify
+                snk/TupleSink
+                (-key-class [_] Object)
+                (-val-class [_] Object)
+                (-emit-keyval [_ key val]
+                  (swap! seen conj [*marker* (Thread/currentThread)]))
+                (-close [_]))]
+    (binding [*marker* :bound]
+      (with-open [^Closeable a (mr/async-sink (sink))
+                  ^Closeable b (mr/async-sink (sink))]
+        (snk/emit-keyval a 1 1)
+        (snk/emit-keyval b 2 2)))
+    (is (= [:bound :bound] (map first @seen)))
+    (is (= 1 (count (distinct (map second @seen)))))
+    (is (not= (Thread/currentThread) (second (first @seen))))))
+
+(defn ^:private writer-threads
+  "Live asynchronous sink writer threads."
+  []
+  (->> (Thread/getAllStackTraces) keys
+       (filter (fn [^Thread t]
+                 (and (= "parkour-async-sink" (.getName t)) (.isAlive t))))))
+
+(deftest test-async-sink-scope
+  (s/with-resource-scope
+    (mr/async-sink (collecting-sink (atom [])))
+    (is (= 1 (count (writer-threads)))))
+  (doseq [^Thread t (writer-threads)] (.join t 1000))
+  (is (empty? (writer-threads))))
+
+(def records
+  (mapv #(vector (str "k" %) %) (range 100)))
+
+(defn identity-mapper [input] input)
+
+(deftest test-async-output
+  (let [conf (doto (th/config)
+               (conf/assoc! "parkour.sink.async" true
+                            "parkour.sink.async.batch" 7))
+        dseq (conf/with-default conf
+               (dsink/with-dseq (seqf/dsink [Text LongWritable]) records))]
+    (is (= records (into [] dseq)))
+    (is (= records
+           (->> (-> (pg/input dseq)
+                    (pg/map #'identity-mapper)
+                    (pg/output (seqf/dsink [Text LongWritable]))
+                    (pg/fexecute conf "test-async-output"))
+                (into []) (sort-by second))))))
@@ -2,7 +2,7 @@
   (:require [clojure.test :refer :all]
             [clojure.core.reducers :as r]
             [parkour (conf :as conf) (fs :as fs) (wrapper :as w)
-             ,       (mapreduce :as mr) (graph :as pg)]
+             ,       (mapreduce :as mr) (graph :as pg) (reducers :as pr)]
             [parkour.io (dsink :as dsink) (seqf :as seqf) (text :as text)]
             [parkour.test-helpers :as th])
   (:import [org.apache.hadoop.io Text LongWritable NullWritable]
@@ -23,16 +23,17 @@
   (->> (shapef input) (mapf transf) (r/map pr-str) (mr/sink-as :keys)))
 
 (defn run-test-source
-  [shapef mapf transf]
-  (-> (seqf/dsink [Text LongWritable])
-      (dsink/with-dseq input-data)
-      (pg/input)
-      (pg/map Mapper)
-      (pg/partition [Text LongWritable])
-      (pg/reduce #'reducer shapef mapf transf)
-      (pg/output (text/dsink))
-      (pg/fexecute (th/config) "test-source")
-      (->> (r/map read-string) (into []))))
+  ([shapef mapf transf] (run-test-source (th/config) shapef mapf transf))
+  ([conf shapef mapf transf]
+     (-> (seqf/dsink [Text LongWritable])
+         (dsink/with-dseq input-data)
+         (pg/input)
+         (pg/map Mapper)
+         (pg/partition [Text LongWritable])
+         (pg/reduce #'reducer shapef mapf transf)
+         (pg/output (text/dsink))
+         (pg/fexecute conf "test-source")
+         (->> (r/map read-string) (into [])))))
 
 (defn into-vec [coll] (into [] coll))
 (defn into-seq [coll] (into [] (seq coll)))
@@ -96,3 +97,106 @@
     (is (= expected (run-test-source #'mr/keysgroups #'r/map #'into-seq)))
     (is (= expected (run-test-source #'mr/keysgroups #'map #'into-vec)))
     (is (= expected (run-test-source #'mr/keysgroups #'map #'into-seq)))))
+
+(defn keyvalgroups-buffered
+  [input] (mr/source-as :keyvalgroups-buffered input))
+
+(defn into-vec-sum' [[k coll]] [k [(into [] coll) (reduce + coll) (count coll)]])
+
+(deftest test-keyvalgroups-buffered
+  (let [expected [["a" [[1 2] 3 2]] ["b" [[3] 3 1]]
+                  ["c" [[4 5 6] 15 3]] ["d" [[7] 7 1]]]
+        spill-conf (conf/assoc! (th/config) "parkour.spill.buffer.bytes" 0)]
+    (is (= expected (run-test-source
+                     #'keyvalgroups-buffered #'r/map #'into-vec-sum')))
+    (is (= expected (run-test-source
+                     #'keyvalgroups-buffered #'map #'into-vec-sum')))
+    (is (= expected (run-test-source spill-conf
+                     #'keyvalgroups-buffered #'r/map #'into-vec-sum')))))
+
+(defn keyvals-chunked [input] (mr/source-as :keyvals-chunked input))
+(defn key-chunks [input] (mr/source-as :key-chunks input))
+
+(defn keys-chunked [input] (mr/source-as :keys-chunked input))
+
+(defn chunked-seq-flag
+  [input] [(chunked-seq? (seq (mr/source-as :keys-chunked input)))])
+
+(defn raw-key-chunks [_] (mr/source-as :key-chunks mr/*context*))
+
+(deftest test-chunks
+  (is (= [true] (run-test-source #'chunked-seq-flag #'map #'identity)))
+  (is (= ["a" "a" "b" "c" "c" "c" "d"]
+         (run-test-source (conf/assoc! (th/config)
+                                       "parkour.source.chunk.size" 3)
+                          #'keys-chunked #'map #'identity)))
+  (is (thrown? Exception
+               (run-test-source #'raw-key-chunks #'r/map #'into-vec)))
+  (let [expected base-data]
+    (is (= expected (run-test-source #'keyvals-chunked #'r/map #'identity)))
+    (is (= expected (run-test-source #'keyvals-chunked #'map #'identity))))
+  (let [expected [["a" "a" "b" "c" "c" "c" "d"]]
+        conf (conf/assoc! (th/config) "parkour.source.chunk.size" 4)]
+    (is (= expected (run-test-source #'key-chunks #'r/map #'into-vec)))
+    (is (= [["a" "a" "b" "c"] ["c" "c" "d"]]
+           (run-test-source conf #'key-chunks #'map #'into-vec)))))
+
+(defn kv-mapper
+  [input]
+  (->> input
+       (pr/kv-filter (fn [k _] (not= "b" k)))
+       (pr/kv-map-vals #(* 10 %))))
+
+(deftest test-kv-reduce
+  (let [dseq (-> (seqf/dsink [Text LongWritable])
+                 (dsink/with-dseq input-data))]
+    (is (= (vec input-data)
+           (pr/kv-reduce (fn [acc k v] (conj acc [k v])) [] dseq)))
+    (is (= "a" (pr/kv-reduce (fn [_ k _] (reduced k)) nil dseq)))
+    (is (= [["a" 10] ["a" 20] ["c" 40] ["c" 50] ["c" 60] ["d" 70]]
+           (->> (-> (pg/input dseq)
+                    (pg/map #'kv-mapper)
+                    (pg/output (seqf/dsink [Text LongWritable]))
+                    (pg/fexecute (th/config) "test-kv-reduce"))
+                (into [])
+                (sort-by (juxt first second)))))))
+
+(defn sum-mapper
+  [input] [["sum" (r/fold + (r/map second input))]])
+
+(defn psum-mapper
+  {::mr/source-as :keyvals-parallel}
+  [input] (sum-mapper input))
+
+(defn context-mapper
+  {::mr/source-as :keyvals-parallel}
+  [input]
+  (let [bound? (r/fold (fn ([] true) ([a b] (and a b)))
+                       (fn [acc _] (and acc (some? mr/*context*)))
+                       input)]
+    [["bound" (if bound? 1 0)]]))
+
+(defn sink-mapper
+  {::mr/source-as :keyvals-parallel, ::mr/sink-as :none}
+  [input]
+  (r/fold (fn ([] nil) ([_ _] nil))
+          (fn [_ [k v]]
+            (mr/sink mr/*context* [[(Text. ^String k) (LongWritable. v)]]))
+          input))
+
+(deftest test-parallel-fold
+  (let [dseq (-> (seqf/dsink [Text LongWritable])
+                 (dsink/with-dseq input-data))
+        run (fn [conf mapper]
+              (->> (-> (pg/input dseq)
+                       (pg/map mapper)
+                       (pg/output (seqf/dsink [Text LongWritable]))
+                       (pg/fexecute conf "test-parallel-fold"))
+                   (into [])))
+        conf (conf/assoc! (th/config) "parkour.source.chunk.size" 2)]
+    (is (= [["sum" 28]] (run conf #'psum-mapper)))
+    (is (= [["sum" 28]]
+           (run (conf/assoc! (conf/clone conf) "parkour.source.fold.threads" 3)
+                #'sum-mapper)))
+    (is (= [["bound" 1]] (run conf #'context-mapper)))
+    (is (= (sort input-data) (sort (run conf #'sink-mapper))))))
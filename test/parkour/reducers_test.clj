@@ -69,3 +69,28 @@
          (->> [1 1 1 2 2 2 3 3 3]
               (pr/distinct)
               (into [])))))
+
+(deftest test-kv-reduce
+  (let [coll [[:a 1] [:b 2] [:c 3]]]
+    (is (= 6 (pr/kv-reduce (fn [acc _ v] (+ acc v)) 0 coll)))
+    (is (= :a (pr/kv-reduce (fn [_ k _] (reduced k)) nil coll)))
+    (is (= [[:b 20] [:c 30]]
+           (->> coll
+                (pr/kv-map-vals #(* 10 %))
+                (pr/kv-filter (fn [_ v] (< 10 v)))
+                (into []))))
+    (is (= [["a" 1]]
+           (->> coll
+                (pr/kv-map-keys name)
+                (pr/kv-filter (fn [k _] (= "a" k)))
+                (pr/kv-reduce (fn [acc k v] (conj acc [k v])) []))))
+    (let [kvs (->> (map vector (range) (range 1000))
+                   (pr/kv-map-vals inc)
+                   (pr/kv-filter (fn [k _] (even? k))))]
+      (is (= [[0 1] [2 3]] (take 2 (seq kvs))))
+      (is (= 250000 (r/fold + (fn [acc [_ v]] (+ acc v)) kvs))))
+    (is (= [[1 :x]]
+           (->> (iterate identity [0 :x])
+                (pr/kv-map-keys inc)
+                (seq)
+                (take 1))))))
@@ -0,0 +1,25 @@
+(ns parkour.skew-test
+  (:require [clojure.test :refer :all]
+            [clojure.java.io :as io]
+            [parkour (wrapper :as w) (mapreduce :as mr) (skew :as skew)]
+            [parkour.io (text :as text)]
+            [parkour.test-helpers :as th])
+  (:import [org.apache.hadoop.mapreduce Partitioner]))
+
+(use-fixtures :once th/config-fixture)
+
+(deftest test-heavy-hitters
+  (let [lines (text/dseq (io/resource "word-count-input.txt"))]
+    (is (= {"apple" 2, "banana" 2}
+           (skew/heavy-hitters {:reducers 4, :min-fanout 2} identity lines)))
+    (is (= {} (skew/heavy-hitters {:reducers 1} identity lines)))))
+
+(deftest test-skew-p
+  (let [job (mr/job), hot {"hot" 3}
+        klass (mr/partitioner! job #'skew/skew-p hot)
+        p ^Partitioner (w/new-instance job klass)
+        np 10, ->part #(.getPartition p % nil np)
+        cold (->part "cold")]
+    (is (= 3 (count (into #{} (repeatedly 30 #(->part "hot"))))))
+    (is (every? #{cold} (repeatedly 10 #(->part "cold"))))
+    (is (< -1 (->part nil) np))))
@@ -0,0 +1,70 @@
+(ns parkour.tuning-test
+  (:require [clojure.test :refer :all]
+            [clojure.string :as str]
+            [clojure.java.io :as io]
+            [clojure.core.reducers :as r]
+            [parkour (conf :as conf) (fs :as fs) (cstep :as cstep)
+             ,       (mapreduce :as mr) (graph :as pg) (tuning :as tuning)]
+            [parkour.io (text :as text)]
+            [parkour.test-helpers :as th])
+  (:import [org.apache.hadoop.io Text NullWritable]))
+
+(use-fixtures :once th/config-fixture)
+
+(def input
+  (io/resource "word-count-input.txt"))
+
+(deftest test-adaptive-sizing
+  (let [nbytes (-> input io/file .length)
+        store (doto (fs/path "tmp/tuning-sizing") fs/path-delete)
+        job (doto (mr/job)
+              (.setNumReduceTasks 1000)
+              (conf/assoc! "parkour.tuning.store" (str store)
+                           "parkour.tuning.reducer.bytes" 10))
+        job (cstep/apply! job [(text/dseq input) tuning/adaptive-sizing])]
+    (is (= (long (Math/ceil (/ nbytes 10.0))) (.getNumReduceTasks job))))
+  (let [job (doto (mr/job)
+              (.setNumReduceTasks 1000)
+              (conf/assoc! "parkour.tuning.reducer.bytes" 10))
+        job (cstep/apply! job [(text/dseq input) tuning/adaptive-sizing])]
+    (is (= 1000 (.getNumReduceTasks job))))
+  (let [job (doto (mr/job)
+              (.setNumReduceTasks 0)
+              (conf/assoc! "parkour.tuning.store" "tmp/tuning-sizing"))
+        job (cstep/apply! job [(text/dseq input) tuning/adaptive-sizing])]
+    (is (= 0 (.getNumReduceTasks job)))))
+
+(defn words-m
+  {::mr/sink-as :keys}
+  [coll] (r/mapcat #(str/split % #"\s+") coll))
+
+(defn lines-m
+  {::mr/sink-as :keys}
+  [coll] coll)
+
+(deftest test-history
+  (let [store (doto (fs/path "tmp/tuning") fs/path-delete)
+        conf (doto (th/config)
+               (conf/assoc! "parkour.tuning.store" (str store)))
+        words #(-> %
+                   (pg/map #'words-m)
+                   (pg/partition [Text NullWritable])
+                   (pg/config tuning/adaptive-sizing)
+                   (pg/output (text/dsink))
+                   (pg/fexecute conf "tuning-test")
+                   (->> (into #{})))]
+    (is (= #{"apple" "banana" "carrot"}
+           (words (pg/input (text/dseq input)))))
+    (is (= #{"apple" "banana" "carrot"}
+           (-> (pg/input (text/dseq input))
+               (pg/map #'lines-m)
+               (pg/partition [Text NullWritable])
+               (words))))
+    (let [dirs (fs/path-list store)
+          key (-> dirs first .getName (java.net.URLDecoder/decode "UTF-8"))
+          runs (tuning/history conf key)]
+      (is (= 1 (count dirs)))
+      (is (.startsWith ^String key "tuning-test-"))
+      (is (= 2 (count runs)))
+      (is (every? (comp pos? :input-bytes) runs))
+      (is (every? (comp pos? :map-output-bytes) runs)))))